@@ -0,0 +1,231 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.eclipse.paho.client.mqttv3.*;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes with {@link MqttAsyncClient}, keeping up to {@code maxInflight} unacknowledged messages
+ * on the wire instead of waiting one broker round trip per message.
+ *
+ * <p>
+ * Callers hand messages to a bounded send queue that is drained by a single sender thread. When the
+ * queue is full the {@link OverflowPolicy} decides whether the caller blocks or a message is dropped.
+ * The sender acquires a window permit per message; the permit is released again from the delivery
+ * callback, which also reports the result to the registered {@link CompletionListener}s.
+ */
+public class AsyncMqttPublisher implements TelemetryPublisher {
+
+    public enum OverflowPolicy {
+        /** The publishing thread waits for space in the send queue */
+        BLOCK,
+        /** The new message is discarded */
+        DROP,
+        /** The oldest queued message is discarded to make room for the new one */
+        DROP_OLDEST
+    }
+
+    public interface CompletionListener {
+        /**
+         * @param latencyNanos time from {@link #publish} until the delivery result
+         * @param error null if the broker acknowledged the message
+         */
+        void onComplete(String topic, byte[] payload, long latencyNanos, Throwable error);
+    }
+
+    private static final class Pending {
+        final String topic;
+        final byte[] payload;
+        final long submittedNanos = System.nanoTime();
+
+        Pending(String topic, byte[] payload) {
+            this.topic = topic;
+            this.payload = payload;
+        }
+    }
+
+    private final MqttAsyncClient client;
+    private final int qos;
+    private final int maxInflight;
+    private final OverflowPolicy policy;
+    private final BlockingQueue<Pending> queue;
+    private final Semaphore window;
+    private final Thread sender;
+    private final List<CompletionListener> completionListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    public AsyncMqttPublisher(String mqttBroker, int qos, int maxInflight, int queueCapacity, OverflowPolicy policy)
+            throws MqttException {
+        this.qos = qos;
+        this.maxInflight = maxInflight;
+        this.policy = policy;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.window = new Semaphore(maxInflight);
+
+        client = new MqttAsyncClient(mqttBroker, MqttAsyncClient.generateClientId(), new MemoryPersistence());
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setMaxInflight(maxInflight);
+        options.setAutomaticReconnect(true);
+        client.connect(options).waitForCompletion();
+        System.out.println("Connected to MQTT Broker: " + mqttBroker + " (async, maxInflight=" + maxInflight
+                + ", queue=" + queueCapacity + ", policy=" + policy + ")");
+
+        sender = new Thread(this::sendLoop, "mqtt-async-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    public void addCompletionListener(CompletionListener completionListener) {
+        completionListeners.add(completionListener);
+    }
+
+    @Override
+    public void publish(String topic, byte[] payload) throws InterruptedException {
+        Pending p = new Pending(topic, payload);
+        outstanding.incrementAndGet();
+        switch (policy) {
+            case BLOCK:
+                try {
+                    queue.put(p);
+                } catch (InterruptedException e) {
+                    outstanding.decrementAndGet();
+                    throw e;
+                }
+                break;
+            case DROP:
+                if (!queue.offer(p)) {
+                    dropped.incrementAndGet();
+                    outstanding.decrementAndGet();
+                    return;
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(p)) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                        outstanding.decrementAndGet();
+                    }
+                }
+                break;
+        }
+        submitted.incrementAndGet();
+    }
+
+    @Override
+    public boolean offer(String topic, byte[] payload) {
+        if (!client.isConnected()) return false;
+        // Only accept what the in-flight window can take right away, counting the messages queued for it
+        long n;
+        do {
+            n = outstanding.get();
+            if (n >= maxInflight) return false;
+        } while (!outstanding.compareAndSet(n, n + 1));
+        if (!queue.offer(new Pending(topic, payload))) {
+            outstanding.decrementAndGet();
+            return false;
+        }
+        submitted.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public int inflight() {
+        return maxInflight - window.availablePermits();
+    }
+
+    /**
+     * Waits until the send queue is empty and all in-flight messages have been acknowledged.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (outstanding.get() > 0) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private void sendLoop() {
+        while (running) {
+            Pending p;
+            try {
+                p = queue.take();
+                window.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                MqttMessage message = new MqttMessage(p.payload);
+                message.setQos(qos);
+                client.publish(p.topic, message, p, deliveryListener);
+            } catch (MqttException e) {
+                window.release();
+                onDelivery(p, e);
+            }
+        }
+    }
+
+    private final IMqttActionListener deliveryListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            window.release();
+            onDelivery((Pending) token.getUserContext(), null);
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable exception) {
+            window.release();
+            onDelivery((Pending) token.getUserContext(), exception);
+        }
+    };
+
+    private void onDelivery(Pending p, Throwable error) {
+        if (error == null) {
+            completed.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+        outstanding.decrementAndGet();
+        long latency = System.nanoTime() - p.submittedNanos;
+        for (CompletionListener l : completionListeners) {
+            l.onComplete(p.topic, p.payload, latency, error);
+        }
+    }
+
+    @Override
+    public String stats() {
+        return "submitted=" + submitted.get() + " completed=" + completed.get() + " failed=" + failed.get()
+                + " dropped=" + dropped.get() + " queued=" + queue.size()
+                + " inflight=" + inflight();
+    }
+
+    @Override
+    public void close() throws MqttException {
+        running = false;
+        sender.interrupt();
+        client.disconnect().waitForCompletion();
+        client.close();
+    }
+}
@@ -0,0 +1,25 @@
+package com.prosysopc.ua.samples.agent;
+
+/**
+ * Compression of the body of a telemetry batch envelope; the ordinal is the id on the wire.
+ */
+public enum BatchCompression {
+    NONE,
+    /** Raw deflate (java.util.zip), best ratio */
+    DEFLATE,
+    /** LZ4 block format, cheapest on CPU */
+    LZ4;
+
+    private static final BatchCompression[] VALUES = values();
+
+    public static BatchCompression byId(int id) {
+        if (id < 0 || id >= VALUES.length) {
+            throw new IllegalArgumentException("Unknown batch compression " + id);
+        }
+        return VALUES[id];
+    }
+
+    public static BatchCompression parse(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
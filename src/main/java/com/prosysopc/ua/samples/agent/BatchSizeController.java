@@ -0,0 +1,80 @@
+package com.prosysopc.ua.samples.agent;
+
+/**
+ * Adapts the batch size (in Kafka records) and flush interval of a {@link TimescaleWorker} to a commit
+ * latency SLO.
+ *
+ * <p>
+ * After every commit the size is adjusted AIMD-style against a moving average of the commit latency:
+ * above the SLO it is halved, below 80% of the SLO and with more lag than one batch it grows by a
+ * quarter. Without lag a larger batch only adds latency, so the size is left alone. The flush
+ * interval is the part of the SLO the commit does not use: at low load the worker waits that long for
+ * a batch to fill, while lagging it writes as soon as a full batch is queued.
+ *
+ * <p>
+ * Updated by the worker thread only; the accessors may be read from any thread.
+ */
+public class BatchSizeController {
+
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final int minRecords;
+    private final int maxRecords;
+    private final long sloNanos;
+
+    private volatile int batchRecords;
+    private volatile long lingerNanos;
+    private volatile long latencyNanos;
+    private volatile long lag;
+
+    public BatchSizeController(int minRecords, int maxRecords, long sloMillis) {
+        this.minRecords = minRecords;
+        this.maxRecords = maxRecords;
+        this.sloNanos = sloMillis * 1_000_000;
+        this.batchRecords = minRecords;
+        this.lingerNanos = sloNanos / 2;
+    }
+
+    public static BatchSizeController fromEnv() {
+        return new BatchSizeController(
+                Integer.parseInt(System.getenv().getOrDefault("TIMESCALE_BATCH_MIN_RECORDS", "500")),
+                Integer.parseInt(System.getenv().getOrDefault("TIMESCALE_BATCH_MAX_RECORDS", "50000")),
+                Long.parseLong(System.getenv().getOrDefault("TIMESCALE_LATENCY_SLO_MS", "500")));
+    }
+
+    /**
+     * Records the latency of a commit and adjusts batch size and flush interval.
+     */
+    public void onCommit(long nanos) {
+        long avg = latencyNanos == 0 ? nanos : (long) (EWMA_ALPHA * nanos + (1 - EWMA_ALPHA) * latencyNanos);
+        latencyNanos = avg;
+        int records = batchRecords;
+        if (avg > sloNanos) {
+            records = Math.max(minRecords, records / 2);
+        } else if (avg < sloNanos * 8 / 10 && lag > records) {
+            records = Math.min(maxRecords, records + Math.max(1, records / 4));
+        }
+        batchRecords = records;
+        lingerNanos = lag > records ? 0 : Math.max(0, sloNanos - avg);
+    }
+
+    /**
+     * Records not yet written by the worker: its queue plus the consumer lag of its partitions.
+     */
+    public void setLag(long lag) {
+        this.lag = lag;
+    }
+
+    public int batchRecords() {
+        return batchRecords;
+    }
+
+    public long lingerNanos() {
+        return lingerNanos;
+    }
+
+    public String stats() {
+        return "batchRecords=" + batchRecords + " lingerMs=" + lingerNanos / 1_000_000
+                + " commitAvgMs=" + latencyNanos / 1_000_000 + " sloMs=" + sloNanos / 1_000_000 + " lag=" + lag;
+    }
+}
@@ -0,0 +1,224 @@
+package com.prosysopc.ua.samples.agent;
+
+/**
+ * Compact, schema-versioned binary encoding of a {@link TelemetryRecord}.
+ *
+ * <pre>
+ * byte     magic 0xC7
+ * byte     schema version
+ * byte     flags (FLAG_VARINT_TIMESTAMP, FLAG_FLOAT32, FLAG_CONTEXT)
+ * varint   field mask, bit n = CncField with ordinal n is present
+ * long     timestamp in epoch millis, or varint if FLAG_VARINT_TIMESTAMP
+ * string   machine id
+ * numbers  every present numeric field in ordinal order, 8-byte double or 4-byte float if FLAG_FLOAT32
+ * strings  every present text field in ordinal order
+ * byte     if FLAG_CONTEXT: bit n = ContextField with ordinal n is present,
+ * strings  followed by the present ContextFields in ordinal order
+ * </pre>
+ *
+ * Strings are varint length-prefixed UTF-8. Field names never travel: the field id is the bit in the
+ * mask. The numeric values follow the timestamp and machine id back to back, 8 or 4 bytes each, so
+ * their position depends on the length of those two. Lengths are checked against the remaining
+ * bytes, and a damaged record fails with an {@link IllegalArgumentException}. Encoding writes into a
+ * reused {@link EncodeBuffer} and decoding interns strings, so neither allocates per message once
+ * the machine ids and text values have been seen.
+ */
+public class BinaryTelemetryCodec implements TelemetryCodec {
+
+    public static final byte MAGIC = (byte) 0xC7;
+    public static final int SCHEMA_VERSION = 1;
+
+    static final int FLAG_VARINT_TIMESTAMP = 1;
+    static final int FLAG_FLOAT32 = 1 << 1;
+    static final int FLAG_CONTEXT = 1 << 2;
+
+    private static final long NUMERIC_MASK;
+    private static final long TEXT_MASK;
+
+    static {
+        long numeric = 0, text = 0;
+        for (CncField f : CncField.VALUES) {
+            if (f.isText()) text |= f.bit();
+            else numeric |= f.bit();
+        }
+        NUMERIC_MASK = numeric;
+        TEXT_MASK = text;
+    }
+
+    private final boolean varintTimestamp;
+    private final boolean float32;
+    private final Reader reader = new Reader();
+    // Only decoders need the intern table, so encoders (one per simulated machine) stay small
+    private StringInterner interner;
+
+    public BinaryTelemetryCodec() {
+        this(true, false);
+    }
+
+    public BinaryTelemetryCodec(boolean varintTimestamp, boolean float32) {
+        this.varintTimestamp = varintTimestamp;
+        this.float32 = float32;
+    }
+
+    @Override
+    public void encode(TelemetryRecord record, EncodeBuffer out) {
+        out.reset();
+        long mask = record.getPresentMask();
+        int flags = (varintTimestamp ? FLAG_VARINT_TIMESTAMP : 0) | (float32 ? FLAG_FLOAT32 : 0)
+                | (record.hasContext() ? FLAG_CONTEXT : 0);
+
+        out.writeByte(MAGIC);
+        out.writeByte(SCHEMA_VERSION);
+        out.writeByte(flags);
+        out.writeVarLong(mask);
+        if (varintTimestamp) {
+            out.writeVarLong(record.getTimestamp());
+        } else {
+            out.writeLong(record.getTimestamp());
+        }
+        out.writeString(record.getMachine() != null ? record.getMachine() : "");
+
+        for (long m = mask & NUMERIC_MASK; m != 0; m &= m - 1) {
+            CncField f = CncField.VALUES[Long.numberOfTrailingZeros(m)];
+            double v = record.getDouble(f, 0.0);
+            if (float32) {
+                out.writeFloat((float) v);
+            } else {
+                out.writeDouble(v);
+            }
+        }
+        for (long m = mask & TEXT_MASK; m != 0; m &= m - 1) {
+            CncField f = CncField.VALUES[Long.numberOfTrailingZeros(m)];
+            String s = record.getText(f, null);
+            out.writeString(s != null ? s : "");
+        }
+        if (record.hasContext()) {
+            int present = 0;
+            for (ContextField c : ContextField.VALUES) {
+                if (record.getContext(c) != null) present |= 1 << c.ordinal();
+            }
+            out.writeByte(present);
+            for (ContextField c : ContextField.VALUES) {
+                String s = record.getContext(c);
+                if (s != null) out.writeString(s);
+            }
+        }
+    }
+
+    @Override
+    public void decode(byte[] payload, int offset, int length, TelemetryRecord into) {
+        decode(reader.reset(payload, offset, offset + length), into);
+    }
+
+    /**
+     * Decodes one record from the reader position, leaving the reader after the record.
+     */
+    void decode(Reader in, TelemetryRecord into) {
+        if (interner == null) interner = new StringInterner(4096);
+        into.clear();
+        if (in.readByte() != MAGIC) throw new IllegalArgumentException("Not a binary telemetry record");
+        int version = in.readByte() & 0xFF;
+        if (version > SCHEMA_VERSION) {
+            throw new IllegalArgumentException("Unsupported telemetry schema version " + version);
+        }
+        int flags = in.readByte() & 0xFF;
+        long mask = in.readVarLong();
+        into.setTimestamp((flags & FLAG_VARINT_TIMESTAMP) != 0 ? in.readVarLong() : in.readLong());
+        into.setMachine(in.readString(interner));
+
+        boolean f32 = (flags & FLAG_FLOAT32) != 0;
+        for (long m = mask & NUMERIC_MASK; m != 0; m &= m - 1) {
+            CncField f = CncField.VALUES[Long.numberOfTrailingZeros(m)];
+            into.setDouble(f, f32 ? Float.intBitsToFloat(in.readInt()) : Double.longBitsToDouble(in.readLong()));
+        }
+        for (long m = mask & TEXT_MASK; m != 0; m &= m - 1) {
+            CncField f = CncField.VALUES[Long.numberOfTrailingZeros(m)];
+            into.setText(f, in.readString(interner));
+        }
+        if ((flags & FLAG_CONTEXT) != 0) {
+            int present = in.readByte();
+            for (ContextField c : ContextField.VALUES) {
+                into.setContext(c, (present & (1 << c.ordinal())) != 0 ? in.readString(interner) : null);
+            }
+        }
+    }
+
+    /**
+     * Cursor over an encoded byte range.
+     */
+    static final class Reader {
+        private byte[] buf;
+        private int pos;
+        private int end;
+
+        Reader reset(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+            return this;
+        }
+
+        int position() {
+            return pos;
+        }
+
+        boolean hasRemaining() {
+            return pos < end;
+        }
+
+        int remaining() {
+            return end - pos;
+        }
+
+        private void require(long n) {
+            if (n < 0 || n > end - pos) throw new IllegalArgumentException("Truncated telemetry record");
+        }
+
+        void skip(int n) {
+            require(n);
+            pos += n;
+        }
+
+        byte readByte() {
+            require(1);
+            return buf[pos++];
+        }
+
+        long readLong() {
+            require(8);
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        int readInt() {
+            require(4);
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return v;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        String readString(StringInterner interner) {
+            long length = readVarLong();
+            require(length);
+            int len = (int) length;
+            String s = interner.intern(buf, pos, len);
+            pos += len;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publishes with the blocking {@link MqttClient}: each message waits for its acknowledgement before
+ * the next one is sent. Publishes are serialized with a {@link ReentrantLock} rather than
+ * {@code synchronized}, so a virtual thread of the load generator that waits for the
+ * acknowledgement does not pin its carrier thread.
+ */
+public class BlockingMqttPublisher implements TelemetryPublisher {
+
+    private final MqttClient client;
+    private final int qos;
+    private final AtomicLong sent = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public BlockingMqttPublisher(String mqttBroker, int qos) throws MqttException {
+        this.qos = qos;
+        client = new MqttClient(mqttBroker, MqttClient.generateClientId());
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setAutomaticReconnect(true);
+        client.connect(options);
+        System.out.println("Connected to MQTT Broker: " + mqttBroker);
+    }
+
+    @Override
+    public void publish(String topic, byte[] payload) throws MqttException {
+        MqttMessage mqttMessage = new MqttMessage(payload);
+        mqttMessage.setQos(qos);
+        lock.lock();
+        try {
+            client.publish(topic, mqttMessage);
+        } finally {
+            lock.unlock();
+        }
+        sent.incrementAndGet();
+    }
+
+    @Override
+    public boolean offer(String topic, byte[] payload) {
+        if (!client.isConnected()) return false;
+        try {
+            publish(topic, payload);
+            return true;
+        } catch (MqttException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    @Override
+    public String stats() {
+        return "sent=" + sent.get();
+    }
+
+    @Override
+    public void close() throws MqttException {
+        client.disconnect();
+        client.close();
+    }
+}
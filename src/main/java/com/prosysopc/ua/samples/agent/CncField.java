@@ -0,0 +1,85 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The CncMachine variables carried by a {@link TelemetryRecord}.
+ *
+ * <p>
+ * The ordinal is the field id on the wire, so new fields must only ever be appended (and
+ * {@link BinaryTelemetryCodec#SCHEMA_VERSION} raised).
+ */
+public enum CncField {
+    MACHINE_STATUS("MachineStatus", true),
+    ACTUAL_SPINDLE_SPEED("ActualSpindleSpeed", false),
+    COOLANT_TEMPERATURE("CoolantTemperature", false),
+    TOOL_LIFE_REMAINING("ToolLifeRemaining", false),
+    PRODUCTION_ORDER_PROGRESS("ProductionOrderProgress", false),
+    TARGET_SPINDLE_SPEED("TargetSpindleSpeed", false),
+    TARGET_FEED_RATE("TargetFeedRate", false),
+    ACTUAL_FEED_RATE("ActualFeedRate", false),
+    X("X", false),
+    Y("Y", false),
+    Z("Z", false),
+    TARGET_SURFACE_FINISH("TargetSurfaceFinish", false),
+    ACTUAL_SURFACE_FINISH("ActualSurfaceFinish", false),
+    CUTTING_FORCE_X("CuttingForceX", false),
+    CUTTING_FORCE_Y("CuttingForceY", false),
+    CUTTING_FORCE_Z("CuttingForceZ", false),
+    TARGET_COOLANT_FLOW("TargetCoolantFlow", false),
+    ACTUAL_COOLANT_FLOW("ActualCoolantFlow", false),
+    TARGET_CYCLE_TIME("TargetCycleTime", false),
+    ACTUAL_CYCLE_TIME("ActualCycleTime", false),
+    ORDER_QUANTITY("OrderQuantity", false),
+    GOOD_PARTS("GoodParts", false),
+    BAD_PARTS("BadParts", false),
+    TOTAL_PARTS("TotalParts", false),
+    MACHINING_PHASE("MachiningPhase", true),
+    ALARM_MESSAGE("AlarmMessage", true),
+    MACHINE_NAME("MachineName", true),
+    MACHINE_SERIAL_NUMBER("MachineSerialNumber", true),
+    PLANT("Plant", true),
+    PRODUCTION_LINE("ProductionLine", true),
+    PRODUCTION_ORDER("ProductionOrder", true),
+    ARTICLE("Article", true);
+
+    public static final CncField[] VALUES = values();
+    public static final int COUNT = VALUES.length;
+
+    private static final Map<String, CncField> BY_NAME = new HashMap<>();
+
+    static {
+        for (CncField f : VALUES) BY_NAME.put(f.fieldName, f);
+    }
+
+    private final String fieldName;
+    private final boolean text;
+
+    CncField(String fieldName, boolean text) {
+        this.fieldName = fieldName;
+        this.text = text;
+    }
+
+    /**
+     * The name of the OPC UA variable and of the JSON property.
+     */
+    public String fieldName() {
+        return fieldName;
+    }
+
+    public boolean isText() {
+        return text;
+    }
+
+    public long bit() {
+        return 1L << ordinal();
+    }
+
+    /**
+     * @return the field or null if the name is not part of the schema
+     */
+    public static CncField byName(String name) {
+        return BY_NAME.get(name);
+    }
+}
@@ -0,0 +1,26 @@
+package com.prosysopc.ua.samples.agent;
+
+/**
+ * The Redis context properties added to a {@link TelemetryRecord} by the HydrationAgent.
+ */
+public enum ContextField {
+    PLANT("plant"),
+    LINE("line"),
+    OPERATOR("operator"),
+    SHIFT("shift");
+
+    public static final ContextField[] VALUES = values();
+
+    private final String key;
+
+    ContextField(String key) {
+        this.key = key;
+    }
+
+    /**
+     * The JSON property name.
+     */
+    public String key() {
+        return key;
+    }
+}
@@ -0,0 +1,238 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Streams {@link TelemetryRecord}s into TimescaleDB with {@code COPY ... FROM STDIN} in PostgreSQL's
+ * binary format, which skips parsing and planning per row.
+ *
+ * <p>
+ * Rows are encoded straight into one reused {@link EncodeBuffer} per table ({@code cnc_machine} and
+ * the narrow {@code cnc_signal_value}, see {@link SignalMapping}), without building strings. A buffer
+ * that exceeds {@code COPY_BUFFER_BYTES} (1 MiB by default) is sent as one COPY; since only one COPY
+ * can be open per connection, the tables take turns.
+ *
+ * <p>
+ * COPY cannot resolve key conflicts, so the rows go into session-local staging tables first. On
+ * {@link #commit()} they are moved into the hypertables in time order with
+ * {@code INSERT ... SELECT ... ON CONFLICT DO UPDATE}, and the transaction commits. {@link #flush()}
+ * moves them the same way and empties the staging tables, so they are not moved twice.
+ *
+ * <pre>
+ * header   "PGCOPY\n\377\r\n\0", int32 flags, int32 header extension length
+ * row      int16 field count, per field int32 length (-1 for NULL) + value
+ * trailer  int16 -1
+ * </pre>
+ *
+ * Fields and context the record does not carry are sent as NULL. Values are sent in their binary
+ * wire format, so they must match the column types exactly:
+ * {@code timestamptz} as int64 microseconds since 2000-01-01 UTC, {@code double precision} as
+ * big-endian IEEE 754, {@code smallint} as int16 and {@code text} as UTF-8.
+ */
+public class CopyRowWriter implements TelemetryRowWriter {
+
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+    /** 2000-01-01T00:00:00Z, the PostgreSQL timestamp epoch, in Unix milliseconds. */
+    private static final long PG_EPOCH_MILLIS = 946_684_800_000L;
+    private static final String NARROW_SQL =
+            "COPY cnc_signal_value_stage (time, machine, signal_id, value) FROM STDIN (FORMAT binary)";
+    private static final String NARROW_MERGE_SQL = "INSERT INTO cnc_signal_value (time, machine, signal_id, value) "
+            + "SELECT DISTINCT ON (time, machine, signal_id) time, machine, signal_id, value "
+            + "FROM cnc_signal_value_stage ORDER BY time, machine, signal_id "
+            + "ON CONFLICT (signal_id, machine, time) DO UPDATE SET value = EXCLUDED.value";
+
+    private final Connection conn;
+    private final CopyManager copyManager;
+    private final SignalMapping mapping;
+    private final int flushBytes;
+    private final String wideSql;
+    private final String wideMergeSql;
+    private final EncodeBuffer wide;
+    private final EncodeBuffer narrow;
+    private int rows;
+    private int flushed;
+
+    public CopyRowWriter(Connection conn, SignalMapping mapping) throws SQLException {
+        this.conn = conn;
+        this.mapping = mapping;
+        conn.setAutoCommit(false);
+        this.copyManager = conn.unwrap(PGConnection.class).getCopyAPI();
+        this.flushBytes = Integer.parseInt(System.getenv().getOrDefault("COPY_BUFFER_BYTES", "1048576"));
+        this.wideSql = "COPY cnc_machine_stage (" + mapping.wideColumnList() + ") FROM STDIN (FORMAT binary)";
+        this.wideMergeSql = "INSERT INTO cnc_machine (" + mapping.wideColumnList() + ") "
+                + "SELECT DISTINCT ON (time, machine) " + mapping.wideColumnList() + " FROM cnc_machine_stage "
+                + "ORDER BY time, machine ON CONFLICT (time, machine) DO UPDATE SET " + mapping.wideUpdateSet();
+        try (Statement st = conn.createStatement()) {
+            st.execute("CREATE TEMP TABLE IF NOT EXISTS cnc_machine_stage "
+                    + "(LIKE cnc_machine INCLUDING DEFAULTS) ON COMMIT DELETE ROWS");
+            st.execute("CREATE TEMP TABLE IF NOT EXISTS cnc_signal_value_stage "
+                    + "(LIKE cnc_signal_value INCLUDING DEFAULTS) ON COMMIT DELETE ROWS");
+        }
+        conn.commit();
+        this.wide = new EncodeBuffer(flushBytes + 1024);
+        this.narrow = new EncodeBuffer(flushBytes + 1024);
+        startCopyData(wide);
+        startCopyData(narrow);
+    }
+
+    @Override
+    public void add(TelemetryRecord rec) throws SQLException {
+        long time = (rec.getTimestamp() - PG_EPOCH_MILLIS) * 1000;
+        wide.writeShort(mapping.wideColumnCount());
+        writeTimestamp(wide, time);
+        writeText(wide, rec.getMachine());
+        for (CncField f : mapping.wideFields()) {
+            if (!rec.has(f)) {
+                wide.writeInt(-1);
+            } else if (f.isText()) {
+                writeText(wide, rec.getText(f, null));
+            } else {
+                writeDouble(wide, rec.getDouble(f, 0.0));
+            }
+        }
+        for (ContextField c : ContextField.VALUES) {
+            writeText(wide, rec.getContext(c));
+        }
+        rows++;
+
+        CncField[] signals = mapping.narrowFields();
+        for (int s = 0; s < signals.length; s++) {
+            if (!rec.has(signals[s])) continue;
+            narrow.writeShort(4);
+            writeTimestamp(narrow, time);
+            writeText(narrow, rec.getMachine());
+            narrow.writeInt(2);
+            narrow.writeShort(mapping.signalId(s));
+            writeDouble(narrow, rec.getDouble(signals[s], 0.0));
+        }
+
+        try {
+            if (wide.size() >= flushBytes) copy(wideSql, wide);
+            if (narrow.size() >= flushBytes) copy(NARROW_SQL, narrow);
+        } catch (SQLException e) {
+            // like a failed flush, the rows are gone
+            rows = 0;
+            startCopyData(wide);
+            startCopyData(narrow);
+            throw e;
+        }
+    }
+
+    private static void startCopyData(EncodeBuffer buffer) {
+        buffer.reset();
+        buffer.writeBytes(SIGNATURE, 0, SIGNATURE.length);
+        buffer.writeInt(0);
+        buffer.writeInt(0);
+    }
+
+    private static void writeTimestamp(EncodeBuffer buffer, long pgMicros) {
+        buffer.writeInt(8);
+        buffer.writeLong(pgMicros);
+    }
+
+    private static void writeDouble(EncodeBuffer buffer, double v) {
+        buffer.writeInt(8);
+        buffer.writeDouble(v);
+    }
+
+    private static void writeText(EncodeBuffer buffer, String s) {
+        if (s == null) {
+            buffer.writeInt(-1);
+            return;
+        }
+        buffer.writeInt(EncodeBuffer.utf8Length(s));
+        buffer.writeUtf8(s);
+    }
+
+    /**
+     * Sends the rows in {@code buffer} as one COPY, if it holds any, and starts a new one.
+     */
+    private void copy(String sql, EncodeBuffer buffer) throws SQLException {
+        try {
+            if (buffer.size() > SIGNATURE.length + 8) {
+                buffer.writeShort(-1);
+                CopyIn copy = copyManager.copyIn(sql);
+                try {
+                    copy.writeToCopy(buffer.array(), 0, buffer.size());
+                    copy.endCopy();
+                } catch (SQLException e) {
+                    if (copy.isActive()) copy.cancelCopy();
+                    throw e;
+                }
+            }
+        } finally {
+            startCopyData(buffer);
+        }
+    }
+
+    /**
+     * Copies the buffered rows and moves the staged rows into the hypertables.
+     */
+    private void merge() throws SQLException {
+        try {
+            copy(wideSql, wide);
+            copy(NARROW_SQL, narrow);
+            if (rows > 0) {
+                try (Statement st = conn.createStatement()) {
+                    st.executeUpdate(wideMergeSql);
+                    st.executeUpdate(NARROW_MERGE_SQL);
+                }
+            }
+            flushed += rows;
+        } finally {
+            rows = 0;
+            startCopyData(wide);
+            startCopyData(narrow);
+        }
+    }
+
+    @Override
+    public int pending() {
+        return rows;
+    }
+
+    @Override
+    public void flush() throws SQLException {
+        int n = rows;
+        merge();
+        if (n > 0) {
+            try (Statement st = conn.createStatement()) {
+                st.execute("TRUNCATE cnc_machine_stage, cnc_signal_value_stage");
+            }
+        }
+    }
+
+    @Override
+    public int commit() throws SQLException {
+        // the staging tables are emptied on commit
+        merge();
+        conn.commit();
+        int n = flushed;
+        flushed = 0;
+        return n;
+    }
+
+    @Override
+    public void rollback() {
+        rows = 0;
+        flushed = 0;
+        startCopyData(wide);
+        startCopyData(narrow);
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            System.err.println("⚠️ Rollback failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        // buffers only, the connection belongs to the caller
+    }
+}
@@ -0,0 +1,144 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Report-by-exception for one machine: passes on only the fields whose value moved beyond its
+ * deadband since it was last sent, plus every field that has not been sent for {@code maxSilence}
+ * (heartbeat).
+ *
+ * <p>
+ * The deadband of a numeric field is {@code max(absolute, percent / 100 * |last sent value|)}; a text
+ * field is sent when it differs. The last sent state is kept in primitive arrays indexed by
+ * {@link CncField#ordinal()}. Not thread-safe; use one instance per machine.
+ *
+ * <p>
+ * {@link #filter} only sees the heartbeat of fields that are part of a new sample. Where samples
+ * only arrive on data changes, a timer calls {@link #heartbeat} so quiet fields are still re-sent.
+ */
+public class DeadbandFilter {
+
+    private final double[] absolute;
+    private final double[] percent;
+    private final long maxSilenceMillis;
+
+    private final double[] lastValue = new double[CncField.COUNT];
+    private final String[] lastText = new String[CncField.COUNT];
+    private final long[] lastSentAt = new long[CncField.COUNT];
+    private long sentMask;
+    private String machine;
+
+    public DeadbandFilter(double[] absolute, double[] percent, long maxSilenceMillis) {
+        this.absolute = absolute;
+        this.percent = percent;
+        this.maxSilenceMillis = maxSilenceMillis;
+    }
+
+    /**
+     * Reads {@code DEADBAND_ABSOLUTE} and {@code DEADBAND_PERCENT} (comma-separated
+     * {@code Field=value} lists), {@code DEADBAND_DEFAULT_ABSOLUTE}, {@code DEADBAND_DEFAULT_PERCENT}
+     * and {@code MAX_SILENCE_MS}.
+     */
+    public static DeadbandFilter fromEnv() {
+        Map<String, String> env = System.getenv();
+        double[] absolute = new double[CncField.COUNT];
+        double[] percent = new double[CncField.COUNT];
+        Arrays.fill(absolute, Double.parseDouble(env.getOrDefault("DEADBAND_DEFAULT_ABSOLUTE", "0")));
+        Arrays.fill(percent, Double.parseDouble(env.getOrDefault("DEADBAND_DEFAULT_PERCENT", "0")));
+        parseBands(env.getOrDefault("DEADBAND_ABSOLUTE", ""), absolute);
+        parseBands(env.getOrDefault("DEADBAND_PERCENT", ""), percent);
+        return new DeadbandFilter(absolute, percent, Long.parseLong(env.getOrDefault("MAX_SILENCE_MS", "60000")));
+    }
+
+    /**
+     * Returns a filter with the same deadbands and no sent state, for another machine.
+     */
+    public DeadbandFilter newInstance() {
+        return new DeadbandFilter(absolute, percent, maxSilenceMillis);
+    }
+
+    public long maxSilenceMillis() {
+        return maxSilenceMillis;
+    }
+
+    private static void parseBands(String spec, double[] target) {
+        for (String entry : spec.split(",")) {
+            if (entry.isBlank()) continue;
+            String[] kv = entry.split("=", 2);
+            CncField f = CncField.byName(kv[0].trim());
+            if (f == null || kv.length < 2) {
+                throw new IllegalArgumentException("Invalid deadband entry: " + entry);
+            }
+            target[f.ordinal()] = Double.parseDouble(kv[1].trim());
+        }
+    }
+
+    /**
+     * Copies the fields of {@code sample} that have to be reported into {@code out}.
+     *
+     * @return false if nothing has to be sent
+     */
+    public boolean filter(TelemetryRecord sample, TelemetryRecord out) {
+        out.clear();
+        out.setMachine(sample.getMachine());
+        out.setTimestamp(sample.getTimestamp());
+        long now = sample.getTimestamp();
+        machine = sample.getMachine();
+
+        boolean any = false;
+        for (long m = sample.getPresentMask(); m != 0; m &= m - 1) {
+            int i = Long.numberOfTrailingZeros(m);
+            CncField f = CncField.VALUES[i];
+            boolean neverSent = (sentMask & f.bit()) == 0;
+            boolean silent = now - lastSentAt[i] >= maxSilenceMillis;
+
+            if (f.isText()) {
+                String v = sample.getText(f, null);
+                if (neverSent || silent || !v.equals(lastText[i])) {
+                    lastText[i] = v;
+                    out.setText(f, v);
+                } else {
+                    continue;
+                }
+            } else {
+                double v = sample.getDouble(f, 0.0);
+                double band = Math.max(absolute[i], percent[i] / 100.0 * Math.abs(lastValue[i]));
+                if (neverSent || silent || Math.abs(v - lastValue[i]) > band) {
+                    lastValue[i] = v;
+                    out.setDouble(f, v);
+                } else {
+                    continue;
+                }
+            }
+            lastSentAt[i] = now;
+            sentMask |= f.bit();
+            any = true;
+        }
+        return any;
+    }
+
+    /**
+     * Copies the last sent value of every field that has not been sent for {@code maxSilence} into
+     * {@code out}, as a heartbeat at {@code now}.
+     *
+     * @return false if no field is due
+     */
+    public boolean heartbeat(long now, TelemetryRecord out) {
+        out.clear();
+        out.setMachine(machine);
+        out.setTimestamp(now);
+
+        boolean any = false;
+        for (long m = sentMask; m != 0; m &= m - 1) {
+            int i = Long.numberOfTrailingZeros(m);
+            if (now - lastSentAt[i] < maxSilenceMillis) continue;
+            CncField f = CncField.VALUES[i];
+            if (f.isText()) out.setText(f, lastText[i]);
+            else out.setDouble(f, lastValue[i]);
+            lastSentAt[i] = now;
+            any = true;
+        }
+        return any;
+    }
+}
@@ -0,0 +1,331 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, disk-backed FIFO of messages, kept in memory-mapped segment files of a fixed size. Holds
+ * MQTT messages for the {@link SpoolingPublisher} and spilled rows for the {@link RowSpill}.
+ *
+ * <pre>
+ * segment header
+ *   int      magic "SPOL"
+ *   int      version
+ *   long     read position: offset of the first record not yet handed to the broker
+ * record
+ *   int      body length, 0 marks the end of the written data
+ *   int      CRC32 of the body
+ *   long     time appended, epoch millis
+ *   short    topic length
+ *   bytes    topic (UTF-8)
+ *   bytes    payload
+ * </pre>
+ *
+ * The length is written last, so a record torn by a crash is either absent or fails its CRC; on
+ * start-up every segment is scanned from its read position and cut at the first invalid record.
+ * Because the segments are mapped, a record survives a crash of the JVM as soon as {@link #append}
+ * returned. Fully read segments are deleted; when {@code maxBytes} is reached the oldest segment is
+ * evicted, or, for a spool opened without eviction, {@link #append} fails until the reader has
+ * made room.
+ *
+ * <p>
+ * All methods are synchronized; the spool is written by the producing threads and read by one
+ * drain thread.
+ */
+public class DiskSpool implements AutoCloseable {
+
+    public static final class Entry {
+        String topic;
+        byte[] payload;
+        long appendedAt;
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public long getAppendedAt() {
+            return appendedAt;
+        }
+    }
+
+    private static final int MAGIC = 0x53504F4C;
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int READ_POS_OFFSET = 8;
+    // length + crc + timestamp + topic length
+    private static final int RECORD_OVERHEAD = 4 + 4 + 8 + 2;
+
+    private static final class Segment {
+        final long seq;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        int readPos;
+        int writePos;
+
+        Segment(long seq, Path path, FileChannel channel, MappedByteBuffer map) {
+            this.seq = seq;
+            this.path = path;
+            this.channel = channel;
+            this.map = map;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final boolean evict;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+
+    private int peekedNext = -1;
+    private long appended;
+    private long drained;
+    private long evictedSegments;
+    private long corruptRecords;
+
+    public DiskSpool(Path dir, int segmentBytes, long maxBytes) throws IOException {
+        this(dir, segmentBytes, maxBytes, true);
+    }
+
+    /**
+     * @param evict whether a full spool discards its oldest segment, or rejects appends
+     */
+    public DiskSpool(Path dir, int segmentBytes, long maxBytes, boolean evict) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.evict = evict;
+        Files.createDirectories(dir);
+        recover();
+    }
+
+    private static Path segmentPath(Path dir, long seq) {
+        return dir.resolve(String.format("segment-%020d.spool", seq));
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> s = Files.list(dir)) {
+            s.filter(p -> p.getFileName().toString().matches("segment-\\d{20}\\.spool")).sorted().forEach(files::add);
+        }
+        for (Path path : files) {
+            long seq = Long.parseLong(path.getFileName().toString().substring(8, 28));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() < HEADER) {
+                channel.close();
+                Files.delete(path);
+                continue;
+            }
+            Segment seg = new Segment(seq, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            if (seg.map.getInt(0) != MAGIC) {
+                System.err.println("⚠️ Spool: " + path + " is not a spool segment, ignoring it");
+                channel.close();
+                continue;
+            }
+            long readPos = seg.map.getLong(READ_POS_OFFSET);
+            seg.readPos = readPos >= HEADER && readPos <= seg.map.capacity() ? (int) readPos : HEADER;
+            seg.writePos = scan(seg, seg.readPos);
+            seg.readPos = Math.min(seg.readPos, seg.writePos);
+            segments.addLast(seg);
+        }
+        // Drop fully drained segments, except the newest one which is appended to
+        while (segments.size() > 1 && segments.peekFirst().readPos >= segments.peekFirst().writePos) {
+            delete(segments.pollFirst());
+        }
+        if (!segments.isEmpty()) {
+            System.out.println("Spool: recovered " + segments.size() + " segment(s), " + usedBytes()
+                    + " bytes pending in " + dir);
+        }
+    }
+
+    /**
+     * Returns the end of the valid records of a segment from {@code pos} on, zeroing the length of a
+     * torn record.
+     */
+    private int scan(Segment seg, int pos) {
+        int capacity = seg.map.capacity();
+        while (pos + 4 <= capacity) {
+            int len = seg.map.getInt(pos);
+            if (len == 0) break;
+            if (len < RECORD_OVERHEAD - 8 || pos + 8 + len > capacity || !crcMatches(seg, pos, len)) {
+                corruptRecords++;
+                System.err.println("⚠️ Spool: invalid record in " + seg.path + " at " + pos + ", truncating");
+                seg.map.putInt(pos, 0);
+                break;
+            }
+            pos += 8 + len;
+        }
+        return pos;
+    }
+
+    private boolean crcMatches(Segment seg, int pos, int len) {
+        crc.reset();
+        crc.update(seg.map.duplicate().limit(pos + 8 + len).position(pos + 8));
+        return (int) crc.getValue() == seg.map.getInt(pos + 4);
+    }
+
+    /**
+     * @throws IOException also if the spool is full and does not evict
+     */
+    public synchronized void append(String topic, byte[] payload) throws IOException {
+        byte[] t = topic.getBytes(StandardCharsets.UTF_8);
+        int len = 8 + 2 + t.length + payload.length;
+        if (HEADER + 8 + len + 4 > segmentBytes) {
+            throw new IOException("Message of " + payload.length + " bytes does not fit a spool segment");
+        }
+        Segment seg = segments.peekLast();
+        // a recovered segment keeps its size on disk, which may differ from segmentBytes
+        if (seg == null || seg.writePos + 8 + len + 4 > seg.map.capacity()) {
+            seg = roll();
+        }
+
+        int pos = seg.writePos;
+        ByteBuffer body = seg.map.duplicate().position(pos + 8);
+        body.putLong(System.currentTimeMillis());
+        body.putShort((short) t.length);
+        body.put(t);
+        body.put(payload);
+        crc.reset();
+        crc.update(seg.map.duplicate().limit(pos + 8 + len).position(pos + 8));
+        seg.map.putInt(pos + 4, (int) crc.getValue());
+        seg.map.putInt(pos, len);
+        seg.writePos = pos + 8 + len;
+        appended++;
+    }
+
+    private Segment roll() throws IOException {
+        while (!segments.isEmpty() && (long) segments.size() * segmentBytes >= maxBytes) {
+            if (!evict) throw new IOException("Spool full at " + maxBytes + " bytes");
+            Segment oldest = segments.pollFirst();
+            evictedSegments++;
+            System.err.println("⚠️ Spool full, discarding " + (oldest.writePos - oldest.readPos)
+                    + " bytes of " + oldest.path);
+            delete(oldest);
+            peekedNext = -1;
+        }
+        long seq = segments.isEmpty() ? System.currentTimeMillis() : segments.peekLast().seq + 1;
+        Path path = segmentPath(dir, seq);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        Segment seg = new Segment(seq, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+        seg.map.putInt(0, MAGIC);
+        seg.map.putInt(4, VERSION);
+        seg.map.putLong(READ_POS_OFFSET, HEADER);
+        seg.readPos = HEADER;
+        seg.writePos = HEADER;
+        segments.addLast(seg);
+        return seg;
+    }
+
+    /**
+     * Reads the oldest pending message into {@code into} without removing it; {@link #commit()}
+     * removes it once it has been handed to the broker.
+     *
+     * @return false if the spool is empty
+     */
+    public synchronized boolean peek(Entry into) throws IOException {
+        while (true) {
+            Segment seg = segments.peekFirst();
+            if (seg == null) return false;
+            if (seg.readPos < seg.writePos) {
+                int pos = seg.readPos;
+                int len = seg.map.getInt(pos);
+                // the length is checked like in scan(), so a damaged one cannot reach past the written data
+                if (len < RECORD_OVERHEAD - 8 || len > seg.writePos - pos - 8 || !crcMatches(seg, pos, len)) {
+                    // Damaged after it was written: skip the rest of this segment
+                    corruptRecords++;
+                    System.err.println("⚠️ Spool: invalid record in " + seg.path + " at " + pos + ", skipping segment");
+                    seg.readPos = seg.writePos;
+                    seg.map.putLong(READ_POS_OFFSET, seg.readPos);
+                    continue;
+                }
+                ByteBuffer body = seg.map.duplicate().position(pos + 8);
+                into.appendedAt = body.getLong();
+                byte[] t = new byte[body.getShort() & 0xFFFF];
+                body.get(t);
+                into.topic = new String(t, StandardCharsets.UTF_8);
+                into.payload = new byte[len - 8 - 2 - t.length];
+                body.get(into.payload);
+                peekedNext = pos + 8 + len;
+                return true;
+            }
+            if (segments.size() == 1) return false;
+            delete(segments.pollFirst());
+        }
+    }
+
+    /**
+     * Removes the message returned by the last {@link #peek}.
+     */
+    public synchronized void commit() throws IOException {
+        Segment seg = segments.peekFirst();
+        if (seg == null || peekedNext < 0) return;
+        seg.readPos = peekedNext;
+        seg.map.putLong(READ_POS_OFFSET, seg.readPos);
+        peekedNext = -1;
+        drained++;
+        if (seg.readPos >= seg.writePos && segments.size() > 1) {
+            delete(segments.pollFirst());
+        }
+    }
+
+    private void delete(Segment seg) throws IOException {
+        seg.channel.close();
+        Files.deleteIfExists(seg.path);
+    }
+
+    public synchronized boolean isEmpty() {
+        for (Segment seg : segments) {
+            if (seg.readPos < seg.writePos) return false;
+        }
+        return true;
+    }
+
+    public synchronized long usedBytes() {
+        long used = 0;
+        for (Segment seg : segments) used += seg.writePos - seg.readPos;
+        return used;
+    }
+
+    /**
+     * Returns the age in milliseconds of the oldest pending message, 0 if the spool is empty.
+     */
+    public synchronized long oldestAgeMillis() {
+        for (Segment seg : segments) {
+            if (seg.readPos < seg.writePos) {
+                return System.currentTimeMillis() - seg.map.getLong(seg.readPos + 8);
+            }
+        }
+        return 0;
+    }
+
+    public synchronized String stats() {
+        return "pending=" + usedBytes() + "B segments=" + segments.size() + " oldest=" + oldestAgeMillis()
+                + "ms appended=" + appended + " drained=" + drained + " evictedSegments=" + evictedSegments
+                + " corrupt=" + corruptRecords;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment seg : segments) {
+            seg.map.force();
+            seg.channel.close();
+        }
+        segments.clear();
+    }
+}
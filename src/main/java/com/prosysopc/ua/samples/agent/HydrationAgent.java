@@ -2,10 +2,11 @@ package com.prosysopc.ua.samples.agent;
 
 import org.eclipse.paho.client.mqttv3.*;
 import org.apache.kafka.clients.producer.*;
-import org.json.JSONObject;
-import redis.clients.jedis.Jedis;
 
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class HydrationAgent {
 
@@ -16,40 +17,70 @@ public class HydrationAgent {
             String redisHost = System.getenv().getOrDefault("REDIS_HOST", "redis_container");
             int redisPort = Integer.parseInt(System.getenv().getOrDefault("REDIS_PORT", "6379"));
 
-            String topicIn = "cnc/machine1/data";
+            String topicIn = System.getenv().getOrDefault("MQTT_TOPIC", "cnc/+/data");
             String topicOut = "machine_data";
+            // By default report-by-exception deltas are merged back into the full machine state
+            boolean forwardDeltas = Boolean.parseBoolean(System.getenv().getOrDefault("KAFKA_FORWARD_DELTAS", "false"));
+            // MQTT batch envelopes are unpacked; optionally each one is forwarded as one Kafka record
+            boolean forwardBatches = Boolean.parseBoolean(System.getenv().getOrDefault("KAFKA_FORWARD_BATCHES", "false"));
+            BatchCompression batchCompression = BatchCompression.parse(
+                    System.getenv().getOrDefault("KAFKA_BATCH_COMPRESSION", "none"));
+            int workers = Integer.parseInt(System.getenv().getOrDefault("HYDRATION_WORKERS", "4"));
+            int queueCapacity = Integer.parseInt(System.getenv().getOrDefault("HYDRATION_QUEUE_SIZE", "1000"));
 
-            // MQTT Subscriber
-            MqttClient mqttClient = new MqttClient(mqttBroker, MqttClient.generateClientId());
-            mqttClient.connect();
-            System.out.println("HydrationAgent connected to MQTT: " + mqttBroker);
+            // Kafka Producer, keyed by machine id
+            Properties kafkaProps = KafkaProducerProfile.fromEnv(kafkaBroker);
+            Producer<String, byte[]> producer = new KafkaProducer<>(kafkaProps);
+            System.out.println("Kafka producer: " + kafkaProps);
 
-            // Kafka Producer
-            Properties kafkaProps = new Properties();
-            kafkaProps.put("bootstrap.servers", kafkaBroker);
-            kafkaProps.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-            kafkaProps.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-            Producer<String, String> producer = new KafkaProducer<>(kafkaProps);
+            // Redis context, cached in memory and refreshed on change notifications
+            RedisContextCache contextCache = RedisContextCache.fromEnv(redisHost, redisPort);
+            System.out.println("Connected to Redis at " + redisHost + " (context cache: " + contextCache.stats() + ")");
 
-            // Redis Connection
-            Jedis jedis = new Jedis(redisHost, redisPort);
-            System.out.println("Connected to Redis at " + redisHost);
+            // MQTT Subscriber: messages are acknowledged by the pipeline once Kafka acknowledged them
+            MqttClient mqttClient = new MqttClient(mqttBroker, MqttClient.generateClientId());
+            mqttClient.setManualAcks(true);
+            HydrationPipeline pipeline = new HydrationPipeline(mqttClient, producer, topicOut, contextCache,
+                    forwardDeltas, forwardBatches ? batchCompression : null, workers, queueCapacity);
 
-            mqttClient.subscribe(topicIn, (topic, message) -> {
-                try {
-                    JSONObject json = new JSONObject(new String(message.getPayload()));
-                    String contextStr = jedis.get("cnc:machine:context");
-                    JSONObject context = (contextStr != null) ? new JSONObject(contextStr) : new JSONObject();
+            mqttClient.setCallback(new MqttCallbackExtended() {
+                @Override
+                public void connectComplete(boolean reconnect, String serverURI) {
+                    try {
+                        mqttClient.subscribe(topicIn, 1);
+                        System.out.println("HydrationAgent " + (reconnect ? "reconnected" : "connected") + " to MQTT: "
+                                + serverURI + ", subscribed to " + topicIn);
+                    } catch (MqttException e) {
+                        System.err.println("⚠️ Could not subscribe to " + topicIn + ": " + e.getMessage());
+                    }
+                }
 
-                    json.put("context", context);
+                @Override
+                public void connectionLost(Throwable cause) {
+                    System.err.println("⚠️ MQTT connection lost: " + cause.getMessage());
+                }
 
-                    producer.send(new ProducerRecord<>(topicOut, json.toString()));
-                    System.out.println("📤 Enriched + sent to Kafka: " + json);
+                @Override
+                public void messageArrived(String topic, MqttMessage message) throws Exception {
+                    pipeline.submit(topic, message);
+                }
 
-                } catch (Exception e) {
-                    System.err.println("⚠️ Error processing MQTT message: " + e.getMessage());
+                @Override
+                public void deliveryComplete(IMqttDeliveryToken token) {
                 }
             });
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setAutomaticReconnect(true);
+            // the broker keeps unacknowledged messages across reconnects and delivers them again
+            options.setCleanSession(false);
+            mqttClient.connect(options);
+
+            ScheduledExecutorService statsLogger = Executors.newSingleThreadScheduledExecutor();
+            statsLogger.scheduleAtFixedRate(() -> {
+                System.out.println("📤 Hydration pipeline (" + workers + " workers): " + pipeline.stats());
+                System.out.println("Context cache: " + contextCache.stats());
+                pipeline.resetLatencies();
+            }, 10, 10, TimeUnit.SECONDS);
 
         } catch (Exception e) {
             e.printStackTrace();
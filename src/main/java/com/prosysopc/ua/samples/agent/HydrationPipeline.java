@@ -0,0 +1,225 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Worker pipeline of the HydrationAgent between the MQTT callback and the Kafka producer.
+ *
+ * <p>
+ * The MQTT callback only hands the message to one of {@code workers} bounded queues, selected by the
+ * hash of the topic ({@code cnc/<machine>/data}), so the messages of one machine are always handled
+ * by the same worker and stay in order. Each worker decodes, merges, enriches and produces on its own
+ * thread with its own codecs and buffers. Kafka records are keyed by machine id, so a machine's
+ * records land in one partition in order. Messages are received with manual acknowledgements and
+ * acknowledged from the send callback once Kafka acknowledged the last record produced from them,
+ * so the broker never has more than its in-flight window outstanding. A message whose records
+ * failed in the producer is not acknowledged; the broker delivers it again after the next reconnect
+ * of the persistent session. A message that cannot be decoded is acknowledged and dropped. When a
+ * queue is full the callback blocks, which pauses the subscription until the worker caught up.
+ *
+ * <p>
+ * Per stage the latency is recorded: time spent queued, the whole handling of a message by the
+ * worker, and the {@code send} calls within it.
+ */
+public class HydrationPipeline {
+
+    /**
+     * A received message and the send callback of the records produced from it.
+     */
+    private final class Inbound implements Callback {
+        final byte[] payload;
+        final int messageId;
+        final int qos;
+        final long receivedNanos = System.nanoTime();
+        // records in flight, plus one held by the worker until it has produced all of them
+        final AtomicInteger pending = new AtomicInteger(1);
+        volatile boolean failed;
+
+        Inbound(MqttMessage message) {
+            this.payload = message.getPayload();
+            this.messageId = message.getId();
+            this.qos = message.getQos();
+        }
+
+        @Override
+        public void onCompletion(RecordMetadata metadata, Exception exception) {
+            producerStats.onCompletion(metadata, exception);
+            if (exception != null) failed = true;
+            done();
+        }
+
+        /**
+         * Acknowledges the message once the worker and all its records are done.
+         */
+        void done() {
+            if (pending.decrementAndGet() > 0) return;
+            if (failed) {
+                unacked.increment();
+                System.err.println("⚠️ Not acknowledging MQTT message " + messageId
+                        + ", producing it to Kafka failed");
+                return;
+            }
+            try {
+                mqttClient.messageArrivedComplete(messageId, qos);
+            } catch (MqttException e) {
+                System.err.println("⚠️ Could not acknowledge MQTT message: " + e.getMessage());
+            }
+        }
+    }
+
+    private final MqttClient mqttClient;
+    private final Producer<String, byte[]> producer;
+    private final ProducerStats producerStats;
+    private final String topicOut;
+    private final RedisContextCache contextCache;
+    private final TelemetryStateMerger merger = new TelemetryStateMerger();
+    private final boolean forwardDeltas;
+    private final BatchCompression forwardBatches;
+    private final Worker[] workers;
+
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram handleLatency = new LatencyHistogram();
+    private final LatencyHistogram sendLatency = new LatencyHistogram();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder unacked = new LongAdder();
+    private final LongAdder pauses = new LongAdder();
+    private final LongAdder pausedNanos = new LongAdder();
+
+    /**
+     * @param forwardBatches compression of the envelope forwarded per MQTT message, or null to forward
+     *                       one Kafka record per sample
+     */
+    public HydrationPipeline(MqttClient mqttClient, Producer<String, byte[]> producer, String topicOut,
+                             RedisContextCache contextCache, boolean forwardDeltas, BatchCompression forwardBatches,
+                             int workerCount, int queueCapacity) {
+        this.mqttClient = mqttClient;
+        this.producer = producer;
+        this.producerStats = new ProducerStats(producer);
+        this.topicOut = topicOut;
+        this.contextCache = contextCache;
+        this.forwardDeltas = forwardDeltas;
+        this.forwardBatches = forwardBatches;
+        this.workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i, queueCapacity);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Called from the MQTT callback; blocks while the worker of the topic is full.
+     */
+    public void submit(String topic, MqttMessage message) throws InterruptedException {
+        Inbound in = new Inbound(message);
+        Worker w = workers[Math.floorMod(topic.hashCode(), workers.length)];
+        if (!w.queue.offer(in)) {
+            pauses.increment();
+            long t0 = System.nanoTime();
+            w.queue.put(in);
+            pausedNanos.add(System.nanoTime() - t0);
+        }
+    }
+
+    private final class Worker extends Thread {
+        final BlockingQueue<Inbound> queue;
+        final TelemetryDecoder decoder = new TelemetryDecoder();
+        final TelemetryCodec encoder = TelemetryCodec.fromEnv();
+        final TelemetryRecord record = new TelemetryRecord();
+        final EncodeBuffer buffer = new EncodeBuffer();
+        final TelemetryBatchWriter batchWriter;
+        Inbound current;
+
+        Worker(int index, int queueCapacity) {
+            super("hydration-worker-" + index);
+            setDaemon(true);
+            queue = new ArrayBlockingQueue<>(queueCapacity);
+            batchWriter = forwardBatches != null ? new TelemetryBatchWriter(encoder, forwardBatches) : null;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Inbound in;
+                try {
+                    in = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long t0 = System.nanoTime();
+                queueLatency.recordNanos(t0 - in.receivedNanos);
+                current = in;
+                try {
+                    int n = decoder.decodeAll(in.payload, record, this::produce);
+                    if (batchWriter != null) send(record.getMachine(), batchWriter.finish());
+                    samples.add(n);
+                } catch (Exception e) {
+                    if (batchWriter != null) batchWriter.reset();
+                    errors.increment();
+                    System.err.println("⚠️ Error processing MQTT message: " + e.getMessage());
+                }
+                handleLatency.recordNanos(System.nanoTime() - t0);
+                messages.increment();
+                current = null;
+                in.done();
+            }
+        }
+
+        private void produce(TelemetryRecord r) {
+            if (!forwardDeltas) merger.merge(r);
+            contextCache.apply(r);
+            if (batchWriter != null) {
+                batchWriter.add(r);
+                return;
+            }
+            encoder.encode(r, buffer);
+            send(r.getMachine(), buffer.toByteArray());
+        }
+
+        private void send(String key, byte[] value) {
+            Inbound in = current;
+            in.pending.incrementAndGet();
+            long s0 = System.nanoTime();
+            try {
+                producer.send(new ProducerRecord<>(topicOut, key, value), in);
+            } catch (RuntimeException e) {
+                in.onCompletion(null, e);
+                throw e;
+            }
+            sendLatency.recordNanos(System.nanoTime() - s0);
+        }
+    }
+
+    public String stats() {
+        StringBuilder depths = new StringBuilder();
+        for (Worker w : workers) {
+            if (depths.length() > 0) depths.append(',');
+            depths.append(w.queue.size());
+        }
+        return "messages=" + messages.sum() + " samples=" + samples.sum() + " errors=" + errors.sum()
+                + " unacked=" + unacked.sum()
+                + " queues=[" + depths + "] pauses=" + pauses.sum() + " (" + pausedNanos.sum() / 1_000_000 + " ms)"
+                + "\n  queued:  " + queueLatency.summary()
+                + "\n  handle:  " + handleLatency.summary()
+                + "\n  send:    " + sendLatency.summary()
+                + "\n  kafka:   " + producerStats.stats();
+    }
+
+    public void resetLatencies() {
+        queueLatency.reset();
+        handleLatency.reset();
+        sendLatency.reset();
+    }
+}
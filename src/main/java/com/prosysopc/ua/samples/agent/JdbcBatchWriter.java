@@ -0,0 +1,123 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * Writes {@link TelemetryRecord}s to TimescaleDB in JDBC batches: one prepared statement per table is
+ * reused, rows are collected with {@code addBatch} and written and committed in one transaction by
+ * {@link #commit()}. With {@code reWriteBatchedInserts=true} on the connection URL pgJDBC sends a batch
+ * as multi-row INSERTs instead of one statement per row.
+ *
+ * <p>
+ * Every record becomes one {@code cnc_machine} row and one {@code cnc_signal_value} row per narrow
+ * signal it carries, see {@link SignalMapping}. Fields and context the record does not carry are
+ * written as NULL. Rows whose key already exists, e.g. from a redelivered Kafka record, are updated
+ * instead of failing the batch.
+ */
+public class JdbcBatchWriter implements TelemetryRowWriter {
+
+    private final Connection conn;
+    private final SignalMapping mapping;
+    private final PreparedStatement wide;
+    private final PreparedStatement narrow;
+    private int rows;
+    private int narrowRows;
+    private int flushed;
+
+    public JdbcBatchWriter(Connection conn, SignalMapping mapping) throws SQLException {
+        this.conn = conn;
+        this.mapping = mapping;
+        conn.setAutoCommit(false);
+        this.wide = conn.prepareStatement("INSERT INTO cnc_machine (" + mapping.wideColumnList() + ") VALUES ("
+                + "?, ".repeat(mapping.wideColumnCount() - 1) + "?) "
+                + "ON CONFLICT (time, machine) DO UPDATE SET " + mapping.wideUpdateSet());
+        this.narrow = conn.prepareStatement(
+                "INSERT INTO cnc_signal_value (time, machine, signal_id, value) VALUES (?, ?, ?, ?) "
+                        + "ON CONFLICT (signal_id, machine, time) DO UPDATE SET value = EXCLUDED.value");
+    }
+
+    @Override
+    public void add(TelemetryRecord rec) throws SQLException {
+        Timestamp time = new Timestamp(rec.getTimestamp());
+        int i = 1;
+        wide.setTimestamp(i++, time);
+        wide.setString(i++, rec.getMachine());
+        for (CncField f : mapping.wideFields()) {
+            if (!rec.has(f)) {
+                wide.setNull(i++, f.isText() ? Types.VARCHAR : Types.DOUBLE);
+            } else if (f.isText()) {
+                wide.setString(i++, rec.getText(f, null));
+            } else {
+                wide.setDouble(i++, rec.getDouble(f, 0.0));
+            }
+        }
+        for (ContextField c : ContextField.VALUES) {
+            wide.setString(i++, rec.getContext(c));
+        }
+        wide.addBatch();
+        rows++;
+
+        CncField[] signals = mapping.narrowFields();
+        for (int s = 0; s < signals.length; s++) {
+            if (!rec.has(signals[s])) continue;
+            narrow.setTimestamp(1, time);
+            narrow.setString(2, rec.getMachine());
+            narrow.setShort(3, mapping.signalId(s));
+            narrow.setDouble(4, rec.getDouble(signals[s], 0.0));
+            narrow.addBatch();
+            narrowRows++;
+        }
+    }
+
+    @Override
+    public int pending() {
+        return rows;
+    }
+
+    @Override
+    public void flush() throws SQLException {
+        try {
+            if (rows > 0) wide.executeBatch();
+            if (narrowRows > 0) narrow.executeBatch();
+            flushed += rows;
+        } finally {
+            rows = 0;
+            narrowRows = 0;
+            wide.clearBatch();
+            narrow.clearBatch();
+        }
+    }
+
+    @Override
+    public int commit() throws SQLException {
+        flush();
+        conn.commit();
+        int n = flushed;
+        flushed = 0;
+        return n;
+    }
+
+    @Override
+    public void rollback() {
+        rows = 0;
+        narrowRows = 0;
+        flushed = 0;
+        try {
+            wide.clearBatch();
+            narrow.clearBatch();
+            conn.rollback();
+        } catch (SQLException e) {
+            System.err.println("⚠️ Rollback failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        wide.close();
+        narrow.close();
+    }
+}
@@ -0,0 +1,80 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The original JSON message layout:
+ * {@code {"machine": ..., "timestamp": ..., "data": {...}, "context": {...}}}.
+ *
+ * <p>
+ * Properties of {@code data} that are not {@link CncField}s are ignored, as are context keys that
+ * are not {@link ContextField}s, and {@code context} is only written when the record has one. The
+ * record keeps numeric values as doubles; whole numbers are written as integers, so integer
+ * variables such as the load generator's spindle speed keep their JSON type.
+ */
+public class JsonTelemetryCodec implements TelemetryCodec {
+
+    @Override
+    public void encode(TelemetryRecord record, EncodeBuffer out) {
+        out.reset();
+        byte[] json = toJson(record).toString().getBytes(StandardCharsets.UTF_8);
+        out.writeBytes(json, 0, json.length);
+    }
+
+    public static JSONObject toJson(TelemetryRecord record) {
+        JSONObject data = new JSONObject();
+        for (CncField f : CncField.VALUES) {
+            if (!record.has(f)) continue;
+            if (f.isText()) {
+                data.put(f.fieldName(), record.getText(f, null));
+            } else {
+                double v = record.getDouble(f, 0.0);
+                long whole = (long) v;
+                if (whole == v && Math.abs(v) < 0x1p53) data.put(f.fieldName(), whole);
+                else data.put(f.fieldName(), v);
+            }
+        }
+
+        JSONObject msg = new JSONObject();
+        msg.put("machine", record.getMachine());
+        msg.put("timestamp", record.getTimestamp());
+        msg.put("data", data);
+        if (record.hasContext()) {
+            JSONObject context = new JSONObject();
+            for (ContextField c : ContextField.VALUES) {
+                String v = record.getContext(c);
+                if (v != null) context.put(c.key(), v);
+            }
+            msg.put("context", context);
+        }
+        return msg;
+    }
+
+    @Override
+    public void decode(byte[] payload, int offset, int length, TelemetryRecord into) {
+        fromJson(new JSONObject(new String(payload, offset, length, StandardCharsets.UTF_8)), into);
+    }
+
+    public static void fromJson(JSONObject json, TelemetryRecord into) {
+        into.clear();
+        into.setMachine(json.optString("machine", "unknown"));
+        into.setTimestamp(json.optLong("timestamp", System.currentTimeMillis()));
+
+        JSONObject data = json.optJSONObject("data");
+        if (data != null) {
+            for (String key : data.keySet()) {
+                CncField f = CncField.byName(key);
+                if (f != null) into.set(f, data.opt(key));
+            }
+        }
+
+        JSONObject context = json.optJSONObject("context");
+        if (context != null) {
+            for (ContextField c : ContextField.VALUES) {
+                if (context.has(c.key())) into.setContext(c, context.optString(c.key()));
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.apache.kafka.clients.producer.ProducerConfig;
+
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Producer settings of the HydrationAgent, selected with {@code KAFKA_PRODUCER_PROFILE}.
+ *
+ * <p>
+ * {@code throughput} (default) is an idempotent producer ({@code acks=all}, retries without
+ * duplicates or reordering) that lingers {@code KAFKA_LINGER_MS} to fill batches of up to
+ * {@code KAFKA_BATCH_SIZE} bytes and compresses them with {@code KAFKA_COMPRESSION} ({@code zstd} or
+ * {@code lz4}). {@code default} keeps the Kafka client defaults. In both profiles the partitioner is
+ * chosen with {@code KAFKA_PARTITIONER}: {@code default} hashes the record key, {@code machine} uses
+ * {@link MachinePartitioner}, anything else is taken as a partitioner class name.
+ */
+public final class KafkaProducerProfile {
+
+    private KafkaProducerProfile() {
+    }
+
+    public static Properties fromEnv(String bootstrapServers) {
+        Map<String, String> env = System.getenv();
+        Properties props = new Properties();
+        props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringSerializer");
+        props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.ByteArraySerializer");
+
+        String profile = env.getOrDefault("KAFKA_PRODUCER_PROFILE", "throughput");
+        if (profile.equalsIgnoreCase("throughput")) {
+            props.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, "true");
+            props.put(ProducerConfig.ACKS_CONFIG, "all");
+            props.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, "5");
+            props.put(ProducerConfig.RETRIES_CONFIG, Integer.toString(Integer.MAX_VALUE));
+            props.put(ProducerConfig.DELIVERY_TIMEOUT_MS_CONFIG, env.getOrDefault("KAFKA_DELIVERY_TIMEOUT_MS", "120000"));
+            props.put(ProducerConfig.LINGER_MS_CONFIG, env.getOrDefault("KAFKA_LINGER_MS", "20"));
+            props.put(ProducerConfig.BATCH_SIZE_CONFIG, env.getOrDefault("KAFKA_BATCH_SIZE", "131072"));
+            props.put(ProducerConfig.BUFFER_MEMORY_CONFIG, env.getOrDefault("KAFKA_BUFFER_MEMORY", "67108864"));
+            props.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, env.getOrDefault("KAFKA_COMPRESSION", "zstd"));
+        } else if (!profile.equalsIgnoreCase("default")) {
+            throw new IllegalArgumentException("Unknown KAFKA_PRODUCER_PROFILE: " + profile);
+        }
+
+        String partitioner = env.getOrDefault("KAFKA_PARTITIONER", "default");
+        if (partitioner.equalsIgnoreCase("machine")) {
+            props.put(ProducerConfig.PARTITIONER_CLASS_CONFIG, MachinePartitioner.class.getName());
+            props.put(MachinePartitioner.PARTITION_MAP_CONFIG, env.getOrDefault("KAFKA_PARTITION_MAP", ""));
+        } else if (!partitioner.equalsIgnoreCase("default")) {
+            props.put(ProducerConfig.PARTITIONER_CLASS_CONFIG, partitioner);
+        }
+        return props;
+    }
+}
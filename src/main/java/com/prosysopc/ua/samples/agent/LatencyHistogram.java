@@ -0,0 +1,84 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear latency histogram.
+ *
+ * <p>
+ * Values are recorded in microseconds into buckets of 16 linear sub-buckets per power of two, which
+ * keeps the relative error of a reported percentile below ~6% while recording costs one atomic
+ * increment.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void recordNanos(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(indexOf(micros));
+        total.increment();
+        max.accumulate(micros);
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long maxMicros() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile 0..100
+     * @return upper bound of the bucket containing the percentile, in microseconds
+     */
+    public long percentileMicros(double percentile) {
+        long n = total.sum();
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(percentile / 100.0 * n);
+        long seen = 0;
+        long max = this.max.get();
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(rank, 1)) return Math.min(upperBoundOf(i), max);
+        }
+        return max;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        total.reset();
+        max.reset();
+    }
+
+    /**
+     * Returns e.g. {@code p50=120µs p90=310µs p99=1450µs p99.9=5200µs max=8100µs}.
+     */
+    public String summary() {
+        return "p50=" + percentileMicros(50) + "µs p90=" + percentileMicros(90) + "µs p99="
+                + percentileMicros(99) + "µs p99.9=" + percentileMicros(99.9) + "µs max=" + max.get() + "µs";
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        int sub = (int) (value >>> (exponent - 1)) & (SUB_BUCKETS - 1);
+        return Math.min(exponent * SUB_BUCKETS + sub, BUCKETS - 1);
+    }
+
+    private static long upperBoundOf(int index) {
+        int exponent = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        if (exponent == 0) return sub;
+        return ((long) (sub | SUB_BUCKETS) << (exponent - 1)) + (1L << (exponent - 1)) - 1;
+    }
+}
@@ -0,0 +1,168 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates many CNC machines publishing to MQTT, to capacity-test the pipeline behind the broker.
+ *
+ * <p>
+ * Every machine runs on its own virtual thread and publishes the CncMachine telemetry fields to
+ * {@code cnc/<id>/data} at a fixed rate. The schedule is absolute (sample k is due at
+ * {@code start + k * period}), so a slow publish is caught up instead of lowering the rate. When the
+ * run is over, the achieved and target message rate and the publish-latency percentiles are
+ * printed. With the asynchronous publisher the latency is measured until the broker acknowledged the
+ * message, otherwise it is the duration of the blocking publish call.
+ *
+ * <p>
+ * With a {@link TelemetryBatcher} the samples are handed to the batcher instead, and the latency is
+ * measured per envelope; it is only available with the asynchronous publisher.
+ */
+public class LoadGenerator {
+
+    private final TelemetryPublisher publisher;
+    private final int machines;
+    private final double rateHz;
+    private final long durationMillis;
+    private final String machinePrefix;
+    private final DeadbandFilter deadbandConfig;
+    private final TelemetryBatcher batcher;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    public LoadGenerator(TelemetryPublisher publisher, int machines, double rateHz, long durationMillis,
+                         String machinePrefix, boolean reportByException, TelemetryBatcher batcher) {
+        this.publisher = publisher;
+        this.machines = machines;
+        this.rateHz = rateHz;
+        this.durationMillis = durationMillis;
+        this.machinePrefix = machinePrefix;
+        this.deadbandConfig = reportByException ? DeadbandFilter.fromEnv() : null;
+        this.batcher = batcher;
+    }
+
+    public static LoadGenerator fromEnv(TelemetryPublisher publisher, boolean reportByException,
+                                        TelemetryBatcher batcher) {
+        return new LoadGenerator(publisher,
+                Integer.parseInt(System.getenv().getOrDefault("LOADGEN_MACHINES", "100")),
+                Double.parseDouble(System.getenv().getOrDefault("LOADGEN_RATE_HZ", "0.5")),
+                Long.parseLong(System.getenv().getOrDefault("LOADGEN_DURATION_SECONDS", "60")) * 1000,
+                System.getenv().getOrDefault("LOADGEN_MACHINE_PREFIX", "CNC-"), reportByException, batcher);
+    }
+
+    public void run() throws InterruptedException {
+        AsyncMqttPublisher asyncPublisher = publisher.transport() instanceof AsyncMqttPublisher a ? a : null;
+        boolean async = asyncPublisher != null;
+        if (async) {
+            asyncPublisher.addCompletionListener((topic, payload, latencyNanos, error) -> {
+                if (error == null) {
+                    latency.recordNanos(latencyNanos);
+                } else {
+                    errors.increment();
+                }
+            });
+        }
+
+        long period = (long) (1_000_000_000L / rateHz);
+        long start = System.nanoTime();
+        long end = start + durationMillis * 1_000_000L;
+        System.out.println("Load generator: " + machines + " machines at " + rateHz + " Hz for "
+                + durationMillis / 1000 + " s (target " + String.format("%.1f", machines * rateHz) + " msg/s)");
+
+        List<Thread> threads = new ArrayList<>(machines);
+        for (int i = 1; i <= machines; i++) {
+            String machineId = String.format("%s%05d", machinePrefix, i);
+            // Spread the first samples over one period so the machines do not publish in lockstep
+            long first = start + ThreadLocalRandom.current().nextLong(period);
+            threads.add(Thread.ofVirtual().name("loadgen-" + machineId)
+                    .start(() -> runMachine(machineId, first, period, end, !async && batcher == null)));
+        }
+
+        long lastSent = 0;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(10_000, Math.max(1, (end - System.nanoTime()) / 1_000_000)));
+            long total = sent.sum();
+            System.out.println("Load generator: sent=" + total + " (" + (total - lastSent) + " since last report) "
+                    + publisher.stats());
+            lastSent = total;
+        }
+        for (Thread t : threads) t.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (batcher != null) batcher.close();
+
+        if (async && !asyncPublisher.awaitDrained(30_000)) {
+            System.err.println("⚠️ Publisher did not drain within 30 s");
+        }
+
+        long total = sent.sum();
+        System.out.println("===== Load generator report =====");
+        System.out.println("Machines:      " + machines + " @ " + rateHz + " Hz");
+        System.out.println("Messages:      " + total + " sent, " + suppressed.sum() + " suppressed by deadband, "
+                + errors.sum() + " errors");
+        long samples = total + suppressed.sum();
+        System.out.println(String.format("Rate:          %.1f samples/s achieved / %.1f samples/s target (%.1f%%)",
+                samples / elapsed, machines * rateHz, 100.0 * samples / elapsed / (machines * rateHz)));
+        System.out.println("Publish latency (" + (async ? "until PUBACK" : "blocking call")
+                + (batcher != null ? ", per envelope" : "") + "): " + latency.summary());
+        System.out.println("Publisher:     " + publisher.stats());
+        if (batcher != null) System.out.println("Batcher:       " + batcher.stats());
+    }
+
+    private void runMachine(String machineId, long next, long period, long end, boolean measureCall) {
+        String topic = "cnc/" + machineId + "/data";
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        TelemetryCodec codec = TelemetryCodec.fromEnv();
+        EncodeBuffer buffer = new EncodeBuffer(256);
+        TelemetryRecord record = new TelemetryRecord();
+        record.setMachine(machineId);
+        DeadbandFilter deadband = deadbandConfig != null ? deadbandConfig.newInstance() : null;
+        TelemetryRecord delta = new TelemetryRecord();
+        while (next < end) {
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            fillSample(record, random);
+            next += period;
+            TelemetryRecord out = record;
+            if (deadband != null) {
+                if (!deadband.filter(record, delta)) {
+                    suppressed.increment();
+                    continue;
+                }
+                out = delta;
+            }
+            long t0 = System.nanoTime();
+            try {
+                if (batcher != null) {
+                    batcher.add(out);
+                } else {
+                    codec.encode(out, buffer);
+                    publisher.publish(topic, buffer.toByteArray());
+                }
+                if (measureCall) latency.recordNanos(System.nanoTime() - t0);
+                sent.increment();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                errors.increment();
+            }
+        }
+    }
+
+    private static void fillSample(TelemetryRecord record, ThreadLocalRandom random) {
+        record.setTimestamp(System.currentTimeMillis());
+        record.setText(CncField.MACHINE_STATUS, random.nextBoolean() ? "Running" : "Stopped");
+        record.setDouble(CncField.ACTUAL_SPINDLE_SPEED, 1000 + random.nextInt(500));
+        record.setDouble(CncField.COOLANT_TEMPERATURE, 20 + random.nextDouble() * 5);
+        record.setDouble(CncField.TOOL_LIFE_REMAINING, random.nextDouble() * 100);
+        record.setDouble(CncField.PRODUCTION_ORDER_PROGRESS, random.nextDouble() * 100);
+    }
+}
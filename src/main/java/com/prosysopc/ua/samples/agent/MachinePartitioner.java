@@ -0,0 +1,48 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.utils.Utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Partitions records by machine id (the record key). Machines listed in
+ * {@code cnc.partition.map} ({@code CNC-01=0,CNC-02=3}) are pinned to a partition, for example to give
+ * a busy machine a partition of its own; all others are spread by the murmur2 hash of the id, like the
+ * default partitioner does for keyed records.
+ */
+public class MachinePartitioner implements Partitioner {
+
+    public static final String PARTITION_MAP_CONFIG = "cnc.partition.map";
+
+    private final Map<String, Integer> pinned = new HashMap<>();
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        Object spec = configs.get(PARTITION_MAP_CONFIG);
+        if (spec == null) return;
+        for (String entry : spec.toString().split(",")) {
+            if (entry.isBlank()) continue;
+            String[] kv = entry.split("=", 2);
+            if (kv.length < 2) throw new IllegalArgumentException("Invalid partition map entry: " + entry);
+            pinned.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+        }
+    }
+
+    @Override
+    public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
+        int partitions = cluster.partitionCountForTopic(topic);
+        if (key != null) {
+            Integer p = pinned.get(key.toString());
+            if (p != null) return p % partitions;
+        }
+        if (keyBytes == null) return 0;
+        return Utils.toPositive(Utils.murmur2(keyBytes)) % partitions;
+    }
+
+    @Override
+    public void close() {
+    }
+}
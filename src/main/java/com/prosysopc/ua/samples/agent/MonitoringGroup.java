@@ -0,0 +1,99 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.util.*;
+
+/**
+ * A named set of CncMachine variables that share the same OPC UA monitoring parameters.
+ *
+ * <p>
+ * Groups are read from the environment: {@code OPCUA_GROUPS} lists the group names and each group
+ * is configured with {@code OPCUA_GROUP_<NAME>_VARIABLES}, {@code ..._PUBLISHING_INTERVAL},
+ * {@code ..._SAMPLING_INTERVAL} and {@code ..._QUEUE_SIZE}. Every variable that is not listed in a
+ * group falls back to the default group, configured with {@code OPCUA_PUBLISHING_INTERVAL},
+ * {@code OPCUA_SAMPLING_INTERVAL} and {@code OPCUA_QUEUE_SIZE}.
+ */
+public class MonitoringGroup {
+
+    public static final String DEFAULT_GROUP = "default";
+
+    private final String name;
+    private final double publishingInterval;
+    private final double samplingInterval;
+    private final int queueSize;
+    private final Set<String> variables;
+
+    public MonitoringGroup(String name, double publishingInterval, double samplingInterval, int queueSize,
+                           Set<String> variables) {
+        this.name = name;
+        this.publishingInterval = publishingInterval;
+        this.samplingInterval = samplingInterval;
+        this.queueSize = queueSize;
+        this.variables = variables;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getPublishingInterval() {
+        return publishingInterval;
+    }
+
+    public double getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public boolean contains(String variable) {
+        return variables.contains(variable);
+    }
+
+    /**
+     * Reads the configured groups. The default group is always the last entry of the list.
+     */
+    public static List<MonitoringGroup> fromEnv() {
+        Map<String, String> env = System.getenv();
+        double defaultPublishing = Double.parseDouble(env.getOrDefault("OPCUA_PUBLISHING_INTERVAL", "1000"));
+        double defaultSampling = Double.parseDouble(env.getOrDefault("OPCUA_SAMPLING_INTERVAL", "500"));
+        int defaultQueue = Integer.parseInt(env.getOrDefault("OPCUA_QUEUE_SIZE", "1"));
+
+        List<MonitoringGroup> groups = new ArrayList<>();
+        for (String groupName : env.getOrDefault("OPCUA_GROUPS", "").split(",")) {
+            groupName = groupName.trim();
+            if (groupName.isEmpty() || groupName.equalsIgnoreCase(DEFAULT_GROUP)) continue;
+
+            String prefix = "OPCUA_GROUP_" + groupName.toUpperCase() + "_";
+            Set<String> variables = new HashSet<>();
+            for (String v : env.getOrDefault(prefix + "VARIABLES", "").split(",")) {
+                if (!v.isBlank()) variables.add(v.trim());
+            }
+            groups.add(new MonitoringGroup(groupName,
+                    Double.parseDouble(env.getOrDefault(prefix + "PUBLISHING_INTERVAL", String.valueOf(defaultPublishing))),
+                    Double.parseDouble(env.getOrDefault(prefix + "SAMPLING_INTERVAL", String.valueOf(defaultSampling))),
+                    Integer.parseInt(env.getOrDefault(prefix + "QUEUE_SIZE", String.valueOf(defaultQueue))),
+                    variables));
+        }
+        groups.add(new MonitoringGroup(DEFAULT_GROUP, defaultPublishing, defaultSampling, defaultQueue,
+                Collections.emptySet()));
+        return groups;
+    }
+
+    /**
+     * Returns the group the variable belongs to, i.e. the first group listing it or the default group.
+     */
+    public static MonitoringGroup groupOf(List<MonitoringGroup> groups, String variable) {
+        for (MonitoringGroup g : groups) {
+            if (g.contains(variable)) return g;
+        }
+        return groups.get(groups.size() - 1);
+    }
+
+    @Override
+    public String toString() {
+        return name + "(publishing=" + publishingInterval + "ms, sampling=" + samplingInterval
+                + "ms, queue=" + queueSize + ")";
+    }
+}
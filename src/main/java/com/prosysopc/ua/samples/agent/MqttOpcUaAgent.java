@@ -1,43 +1,100 @@
 package com.prosysopc.ua.samples.agent;
 
-import org.eclipse.paho.client.mqttv3.*;
-import org.json.JSONObject;
-
-import java.util.Random;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class MqttOpcUaAgent {
 
     public static void main(String[] args) {
         try {
             String mqttBroker = System.getenv().getOrDefault("MQTT_BROKER", "tcp://mqtt_broker:1883");
-            String topic = "cnc/machine1/data";
-
-            MqttClient client = new MqttClient(mqttBroker, MqttClient.generateClientId());
-            client.connect();
-            System.out.println("Connected to MQTT Broker: " + mqttBroker);
+            String opcUaServer = System.getenv().getOrDefault("OPCUA_SERVER",
+                    "opc.tcp://localhost:52520/OPCUA/SampleConsoleServer");
+            String namespaceUri = System.getenv().getOrDefault("OPCUA_NAMESPACE", "http://example.com/CNC");
+            String machineNode = System.getenv().getOrDefault("OPCUA_MACHINE_NODE", "CncMachine");
+            String machineId = System.getenv().getOrDefault("MACHINE_ID", "CNC-01");
+            String topic = System.getenv().getOrDefault("MQTT_TOPIC", "cnc/machine1/data");
+            String mode = System.getenv().getOrDefault("AGENT_MODE", "opcua");
+            boolean reportByException = Boolean.parseBoolean(
+                    System.getenv().getOrDefault("REPORT_BY_EXCEPTION", "false"));
 
-            Random random = new Random();
+            TelemetryPublisher publisher = TelemetryPublisher.fromEnv(mqttBroker);
 
-            while (true) {
-                JSONObject data = new JSONObject();
-                data.put("MachineStatus", random.nextBoolean() ? "Running" : "Stopped");
-                data.put("ActualSpindleSpeed", 1000 + random.nextInt(500));
-                data.put("CoolantTemperature", 20 + random.nextDouble() * 5);
-                data.put("ToolLifeRemaining", random.nextDouble() * 100);
-                data.put("ProductionOrderProgress", random.nextDouble() * 100);
+            if (mode.equalsIgnoreCase("loadgen")) {
+                TelemetryBatcher batcher = TelemetryBatcher.fromEnv(publisher, m -> "cnc/" + m + "/data");
+                LoadGenerator.fromEnv(publisher, reportByException, batcher).run();
+                publisher.close();
+                return;
+            }
 
-                JSONObject msg = new JSONObject();
-                msg.put("machine", "CNC-01");
-                msg.put("timestamp", System.currentTimeMillis());
-                msg.put("data", data);
+            // Micro-batching: samples are collected into envelopes instead of one message each
+            TelemetryBatcher batcher = TelemetryBatcher.fromEnv(publisher, m -> topic);
+            boolean verbose = publisher.transport() instanceof BlockingMqttPublisher && batcher == null;
 
-                MqttMessage mqttMessage = new MqttMessage(msg.toString().getBytes());
-                mqttMessage.setQos(1);
-                client.publish(topic, mqttMessage);
+            ScheduledExecutorService statsLogger = Executors.newSingleThreadScheduledExecutor();
+            statsLogger.scheduleAtFixedRate(() -> {
+                System.out.println("MQTT publisher: " + publisher.stats());
+                if (batcher != null) System.out.println("MQTT batcher: " + batcher.stats());
+            }, 10, 10, TimeUnit.SECONDS);
 
-                System.out.println("Sent MQTT message: " + msg);
-                Thread.sleep(2000);
+            // Values are only published from the OPC UA data-change callbacks
+            TelemetryCodec codec = TelemetryCodec.fromEnv();
+            EncodeBuffer buffer = new EncodeBuffer();
+            Consumer<TelemetryRecord> send = out -> {
+                try {
+                    if (batcher != null) {
+                        batcher.add(out);
+                        return;
+                    }
+                    codec.encode(out, buffer);
+                    byte[] payload = buffer.toByteArray();
+                    publisher.publish(topic, payload);
+                    if (verbose) {
+                        System.out.println("Sent MQTT message: " + (codec instanceof JsonTelemetryCodec
+                                ? new String(payload, StandardCharsets.UTF_8) : payload.length + " bytes"));
+                    }
+                } catch (Exception e) {
+                    System.err.println("⚠️ Error publishing MQTT message: " + e.getMessage());
+                }
+            };
+            // Report-by-exception: only fields that moved past their deadband are sent
+            DeadbandFilter deadband = reportByException ? DeadbandFilter.fromEnv() : null;
+            TelemetryRecord delta = new TelemetryRecord();
+            OpcUaSubscriptionBridge bridge = new OpcUaSubscriptionBridge(opcUaServer, namespaceUri, machineNode,
+                    machineId, MonitoringGroup.fromEnv(), snapshot -> {
+                if (deadband == null) {
+                    send.accept(snapshot);
+                    return;
+                }
+                synchronized (deadband) {
+                    if (deadband.filter(snapshot, delta)) send.accept(delta);
+                }
+            });
+            if (deadband != null) {
+                // Snapshots only come on data changes, so quiet fields get their heartbeat from a timer
+                long period = Math.max(1, Math.min(1000, deadband.maxSilenceMillis()));
+                statsLogger.scheduleAtFixedRate(() -> {
+                    synchronized (deadband) {
+                        if (deadband.heartbeat(System.currentTimeMillis(), delta)) send.accept(delta);
+                    }
+                }, period, period, TimeUnit.MILLISECONDS);
             }
+            bridge.connect();
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                bridge.disconnect();
+                statsLogger.shutdown();
+                if (batcher != null) batcher.close();
+                try {
+                    publisher.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }));
+            Thread.currentThread().join();
 
         } catch (Exception e) {
             e.printStackTrace();
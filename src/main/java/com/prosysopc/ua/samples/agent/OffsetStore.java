@@ -0,0 +1,77 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.apache.kafka.common.TopicPartition;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Kafka consumer offsets kept in TimescaleDB, in table {@code cnc_consumer_offset}.
+ *
+ * <p>
+ * The {@link TimescaleWorker}s write the offsets in the same transaction as the rows they cover, so
+ * after a crash the stored offsets match the stored rows exactly, and the {@link TimescaleAgent} seeks
+ * to them whenever partitions are assigned. Stored offsets only ever move forward, so a worker that
+ * still finishes a batch of a partition that was handed over cannot rewind the new owner.
+ */
+public class OffsetStore {
+
+    private static final String UPSERT = """
+            INSERT INTO cnc_consumer_offset (group_id, topic, partition, next_offset)
+            VALUES (?, ?, ?, ?)
+            ON CONFLICT (group_id, topic, partition) DO UPDATE
+            SET next_offset = EXCLUDED.next_offset, updated_at = now()
+            WHERE cnc_consumer_offset.next_offset < EXCLUDED.next_offset
+            """;
+
+    private static final String SELECT = """
+            SELECT topic, partition, next_offset FROM cnc_consumer_offset WHERE group_id = ?
+            """;
+
+    private final String groupId;
+
+    public OffsetStore(String groupId) {
+        this.groupId = groupId;
+    }
+
+    /**
+     * Stores the next offset to consume per partition as part of the connection's current
+     * transaction; the caller commits.
+     */
+    public void write(Connection conn, Map<TopicPartition, Long> offsets) throws SQLException {
+        if (offsets.isEmpty()) return;
+        try (PreparedStatement ps = conn.prepareStatement(UPSERT)) {
+            for (Map.Entry<TopicPartition, Long> e : offsets.entrySet()) {
+                ps.setString(1, groupId);
+                ps.setString(2, e.getKey().topic());
+                ps.setInt(3, e.getKey().partition());
+                ps.setLong(4, e.getValue());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * @return the stored next offsets of those {@code partitions} that have one
+     */
+    public Map<TopicPartition, Long> read(Connection conn, Collection<TopicPartition> partitions)
+            throws SQLException {
+        Map<TopicPartition, Long> offsets = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(SELECT)) {
+            ps.setString(1, groupId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    TopicPartition tp = new TopicPartition(rs.getString(1), rs.getInt(2));
+                    if (partitions.contains(tp)) offsets.put(tp, rs.getLong(3));
+                }
+            }
+        }
+        return offsets;
+    }
+}
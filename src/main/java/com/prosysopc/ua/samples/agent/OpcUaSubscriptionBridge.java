@@ -0,0 +1,166 @@
+package com.prosysopc.ua.samples.agent;
+
+import com.prosysopc.ua.ApplicationIdentity;
+import com.prosysopc.ua.client.*;
+import com.prosysopc.ua.stack.builtintypes.*;
+import com.prosysopc.ua.stack.core.*;
+import com.prosysopc.ua.stack.transport.security.SecurityMode;
+
+import java.util.*;
+
+/**
+ * Mirrors the CncMachine object of the OPC UA server through monitored items.
+ *
+ * <p>
+ * All variables below the machine node are monitored; variables sharing a publishing interval share
+ * one {@link Subscription}, so with the default configuration there is exactly one subscription.
+ * Data changes update the local snapshot and, once the complete notification package of a publish
+ * response has been handled, the snapshot is handed to the {@link SnapshotListener}.
+ */
+public class OpcUaSubscriptionBridge {
+
+    public interface SnapshotListener {
+        /**
+         * Called with the bridge's snapshot record, which must not be retained after returning.
+         */
+        void onSnapshot(TelemetryRecord snapshot);
+    }
+
+    private static final String APP_NAME = "MqttOpcUaAgent";
+
+    private final String serverUrl;
+    private final String namespaceUri;
+    private final String machineNodeName;
+    private final String machineId;
+    private final List<MonitoringGroup> groups;
+    private final SnapshotListener listener;
+
+    private final TelemetryRecord snapshot = new TelemetryRecord();
+    private final Map<MonitoredItem, CncField> itemFields = new HashMap<>();
+    private boolean changed;
+
+    private UaClient client;
+
+    public OpcUaSubscriptionBridge(String serverUrl, String namespaceUri, String machineNodeName, String machineId,
+                                   List<MonitoringGroup> groups, SnapshotListener listener) {
+        this.serverUrl = serverUrl;
+        this.namespaceUri = namespaceUri;
+        this.machineNodeName = machineNodeName;
+        this.machineId = machineId;
+        this.groups = groups;
+        this.listener = listener;
+    }
+
+    public void connect() throws Exception {
+        client = new UaClient(serverUrl);
+        client.setSecurityMode(SecurityMode.NONE);
+
+        ApplicationDescription appDescription = new ApplicationDescription();
+        appDescription.setApplicationName(new LocalizedText(APP_NAME + "@localhost", Locale.ENGLISH));
+        appDescription.setApplicationUri("urn:localhost:OPCUA:" + APP_NAME);
+        appDescription.setProductUri("urn:prosysopc.com:OPCUA:" + APP_NAME);
+        appDescription.setApplicationType(ApplicationType.Client);
+        ApplicationIdentity identity = new ApplicationIdentity();
+        identity.setApplicationDescription(appDescription);
+        client.setApplicationIdentity(identity);
+        client.setAutoReconnect(true);
+
+        client.connect();
+        System.out.println("Connected to OPC UA Server: " + serverUrl);
+
+        int ns = client.getNamespaceTable().getIndex(namespaceUri);
+        NodeId machineNode = new NodeId(ns, machineNodeName);
+        List<ReferenceDescription> refs = client.getAddressSpace().browse(machineNode, BrowseDirection.Forward,
+                Identifiers.HasComponent, true, NodeClass.Variable);
+
+        // One subscription per distinct publishing interval
+        Map<Double, List<MonitoredItem>> itemsByInterval = new LinkedHashMap<>();
+        for (ReferenceDescription r : refs) {
+            String name = r.getBrowseName().getName();
+            CncField field = CncField.byName(name);
+            if (field == null) {
+                System.out.println("Skipping variable " + name + ": not part of the telemetry schema");
+                continue;
+            }
+            MonitoringGroup group = MonitoringGroup.groupOf(groups, name);
+
+            MonitoredDataItem item = new MonitoredDataItem(client.getNamespaceTable().toNodeId(r.getNodeId()),
+                    Attributes.Value, MonitoringMode.Reporting, group.getSamplingInterval());
+            item.setQueueSize(UnsignedInteger.valueOf(group.getQueueSize()));
+            item.setDiscardOldest(true);
+            itemFields.put(item, field);
+            itemsByInterval.computeIfAbsent(group.getPublishingInterval(), k -> new ArrayList<>()).add(item);
+        }
+
+        for (Map.Entry<Double, List<MonitoredItem>> e : itemsByInterval.entrySet()) {
+            Subscription subscription = new Subscription();
+            subscription.setPublishingInterval(e.getKey());
+            subscription.addNotificationListener(notificationListener);
+            client.addSubscription(subscription);
+            subscription.addItems(e.getValue().toArray(new MonitoredItem[0]));
+        }
+        System.out.println("Monitoring " + itemFields.size() + " variables of " + machineNodeName + " in "
+                + itemsByInterval.size() + " subscription(s), groups: " + groups);
+    }
+
+    public void disconnect() {
+        if (client != null) client.disconnect();
+    }
+
+    private final SubscriptionNotificationListener notificationListener = new SubscriptionNotificationListener() {
+
+        @Override
+        public void onDataChange(Subscription subscription, MonitoredDataItem item, DataValue newValue) {
+            CncField field = itemFields.get(item);
+            if (field == null || newValue == null || newValue.getValue() == null) return;
+
+            synchronized (snapshot) {
+                if (!snapshot.set(field, newValue.getValue().getValue())) return;
+                DateTime ts = newValue.getSourceTimestamp() != null
+                        ? newValue.getSourceTimestamp() : newValue.getServerTimestamp();
+                snapshot.setTimestamp(Math.max(snapshot.getTimestamp(),
+                        ts != null ? ts.getTimeInMillis() : System.currentTimeMillis()));
+                changed = true;
+            }
+        }
+
+        @Override
+        public void onNotificationData(Subscription subscription, NotificationData notification) {
+            // Called once the whole publish response has been applied: emit one message per response
+            synchronized (snapshot) {
+                if (!changed) return;
+                changed = false;
+                snapshot.setMachine(machineId);
+                listener.onSnapshot(snapshot);
+            }
+        }
+
+        @Override
+        public void onBufferOverflow(Subscription subscription, UnsignedInteger sequenceNumber,
+                                     ExtensionObject[] notificationData) {
+            System.err.println("⚠️ OPC UA subscription buffer overflow");
+        }
+
+        @Override
+        public void onError(Subscription subscription, Object notification, Exception exception) {
+            System.err.println("⚠️ Error in OPC UA notification: " + exception.getMessage());
+        }
+
+        @Override
+        public void onEvent(Subscription subscription, MonitoredEventItem item, Variant[] eventFields) {
+        }
+
+        @Override
+        public long onMissingData(Subscription subscription, UnsignedInteger lastSequenceNumber, long sequenceNumber,
+                                  long newSequenceNumber, StatusCode serviceResult) {
+            System.err.println("⚠️ OPC UA data missed: lastSequenceNumber=" + lastSequenceNumber
+                    + " newSequenceNumber=" + newSequenceNumber);
+            return newSequenceNumber;
+        }
+
+        @Override
+        public void onStatusChange(Subscription subscription, StatusCode oldStatus, StatusCode newStatus,
+                                   DiagnosticInfo diagnosticInfo) {
+        }
+    };
+}
@@ -0,0 +1,63 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Send callback shared by all records of a producer: counts acknowledged and failed records, and
+ * reports them together with the producer's own batching, compression and retry metrics.
+ */
+public class ProducerStats implements Callback {
+
+    private final Producer<?, ?> producer;
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile String lastError;
+
+    public ProducerStats(Producer<?, ?> producer) {
+        this.producer = producer;
+    }
+
+    @Override
+    public void onCompletion(RecordMetadata metadata, Exception exception) {
+        if (exception == null) {
+            acked.increment();
+        } else {
+            failed.increment();
+            lastError = exception.getMessage();
+        }
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+
+    public String stats() {
+        Map<MetricName, ? extends Metric> metrics = producer.metrics();
+        String s = "acked=" + acked.sum() + " failed=" + failed.sum()
+                + " retries=" + format(metrics, "record-retry-total")
+                + " batchSizeAvg=" + format(metrics, "batch-size-avg")
+                + " batchSizeMax=" + format(metrics, "batch-size-max")
+                + " recordsPerRequest=" + format(metrics, "records-per-request-avg")
+                + " compressionRate=" + format(metrics, "compression-rate-avg")
+                + " queueTimeAvgMs=" + format(metrics, "record-queue-time-avg");
+        String error = lastError;
+        return error != null ? s + " lastError=" + error : s;
+    }
+
+    private static String format(Map<MetricName, ? extends Metric> metrics, String name) {
+        for (Map.Entry<MetricName, ? extends Metric> e : metrics.entrySet()) {
+            if (e.getKey().group().equals("producer-metrics") && e.getKey().name().equals(name)) {
+                Object v = e.getValue().metricValue();
+                return v instanceof Double d ? String.format("%.2f", d) : String.valueOf(v);
+            }
+        }
+        return "n/a";
+    }
+}
@@ -0,0 +1,288 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.json.JSONObject;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisClientConfig;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process copy of the machine context stored in Redis, so enrichment is a memory lookup instead of
+ * a Redis round trip per message.
+ *
+ * <p>
+ * Every machine has its own hash {@code cnc:machine:<id>:context} with the {@link ContextField} keys.
+ * Machines without a hash get the plant-wide JSON value of {@code cnc:machine:context}. At start-up all
+ * hashes are found with SCAN and read with pipelined HGETALLs, two round trips per SCAN page (the
+ * SCAN and the pipeline); the contexts are kept in a concurrent map keyed by machine id. The binary decoder interns machine ids,
+ * so a lookup does not even compute a hash code.
+ *
+ * <p>
+ * Changes are picked up per machine through keyspace notifications (needs
+ * {@code notify-keyspace-events} with {@code K}, {@code h} and {@code $}, see redis.conf; the
+ * notifications of the database of the client config are subscribed) or a message on
+ * {@code REDIS_CONTEXT_CHANNEL} holding the machine id ({@code *} reloads everything). As a fallback
+ * for lost notifications everything is reloaded every {@code CONTEXT_TTL_MS}. All reads run on one
+ * refresher thread, which owns the Redis connection used for reading; the subscription has its own
+ * connection.
+ */
+public class RedisContextCache implements AutoCloseable {
+
+    public static final String CONTEXT_KEY = "cnc:machine:context";
+    private static final String MACHINE_KEY_PREFIX = "cnc:machine:";
+    private static final String MACHINE_KEY_SUFFIX = ":context";
+    private static final int SCAN_COUNT = 1000;
+
+    private final HostAndPort address;
+    private final JedisClientConfig clientConfig;
+    private final String keyspacePrefix;
+    private final String channel;
+    private final long ttlMillis;
+
+    private final Jedis reader;
+    private final ScheduledExecutorService refresher;
+    private final Thread subscriber;
+    private volatile JedisPubSub pubSub;
+    private volatile boolean running = true;
+
+    // Context arrays are replaced as a whole, never modified, so readers need no lock
+    private final Map<String, String[]> byMachine = new ConcurrentHashMap<>();
+    private volatile String[] defaults = new String[ContextField.VALUES.length];
+    private volatile long loadedAt;
+
+    private final Set<String> pendingMachines = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean reloadPending = new AtomicBoolean();
+    private final AtomicBoolean fullReloadPending = new AtomicBoolean();
+
+    private final AtomicLong fullReloads = new AtomicLong();
+    private final AtomicLong machineReloads = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+
+    public RedisContextCache(HostAndPort address, JedisClientConfig clientConfig, String channel, long ttlMillis) {
+        this.address = address;
+        this.clientConfig = clientConfig;
+        this.keyspacePrefix = "__keyspace@" + clientConfig.getDatabase() + "__:";
+        this.channel = channel;
+        this.ttlMillis = ttlMillis;
+        this.reader = new Jedis(address, clientConfig);
+
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "redis-context-refresher");
+            t.setDaemon(true);
+            return t;
+        });
+        reloadAll();
+        long tick = Math.max(100, ttlMillis / 4);
+        refresher.scheduleWithFixedDelay(() -> {
+            if (System.currentTimeMillis() - loadedAt >= ttlMillis) reloadAll();
+        }, tick, tick, TimeUnit.MILLISECONDS);
+
+        subscriber = new Thread(this::subscribeLoop, "redis-context-subscriber");
+        subscriber.setDaemon(true);
+        subscriber.start();
+    }
+
+    /**
+     * Reads {@code REDIS_DB} (0), {@code REDIS_CONTEXT_CHANNEL} ({@code cnc:machine:context:changed}) and
+     * {@code CONTEXT_TTL_MS} (300000).
+     */
+    public static RedisContextCache fromEnv(String redisHost, int redisPort) {
+        JedisClientConfig clientConfig = DefaultJedisClientConfig.builder()
+                .database(Integer.parseInt(System.getenv().getOrDefault("REDIS_DB", "0")))
+                .build();
+        return new RedisContextCache(new HostAndPort(redisHost, redisPort), clientConfig,
+                System.getenv().getOrDefault("REDIS_CONTEXT_CHANNEL", CONTEXT_KEY + ":changed"),
+                Long.parseLong(System.getenv().getOrDefault("CONTEXT_TTL_MS", "300000")));
+    }
+
+    public static String machineKey(String machineId) {
+        return MACHINE_KEY_PREFIX + machineId + MACHINE_KEY_SUFFIX;
+    }
+
+    /**
+     * Sets the cached context of the record's machine on the record.
+     */
+    public void apply(TelemetryRecord record) {
+        String machine = record.getMachine();
+        String[] c = machine != null ? byMachine.get(machine) : null;
+        if (c == null) c = defaults;
+        for (ContextField f : ContextField.VALUES) {
+            record.setContext(f, c[f.ordinal()]);
+        }
+    }
+
+    public int size() {
+        return byMachine.size();
+    }
+
+    private void scheduleReload(String machineId) {
+        if (machineId == null) {
+            fullReloadPending.set(true);
+        } else {
+            pendingMachines.add(machineId);
+        }
+        // A burst of notifications is coalesced into one pipelined round trip
+        if (reloadPending.compareAndSet(false, true)) refresher.execute(this::reloadPending);
+    }
+
+    private void reloadPending() {
+        reloadPending.set(false);
+        if (fullReloadPending.getAndSet(false)) {
+            pendingMachines.clear();
+            reloadAll();
+            return;
+        }
+        List<String> ids = new ArrayList<>(pendingMachines);
+        pendingMachines.removeAll(ids);
+        if (ids.isEmpty()) return;
+        try {
+            loadMachines(ids);
+            machineReloads.addAndGet(ids.size());
+        } catch (Exception e) {
+            System.err.println("⚠️ Could not reload context of " + ids.size() + " machine(s): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the plant-wide default and every machine hash, and forgets machines whose hash is gone.
+     */
+    private void reloadAll() {
+        try {
+            String json = reader.get(CONTEXT_KEY);
+            defaults = parseJson(json);
+
+            Set<String> seen = new HashSet<>();
+            ScanParams params = new ScanParams().match(MACHINE_KEY_PREFIX + "*" + MACHINE_KEY_SUFFIX).count(SCAN_COUNT);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> page = reader.scan(cursor, params);
+                List<String> ids = new ArrayList<>(page.getResult().size());
+                for (String key : page.getResult()) {
+                    String id = machineIdOf(key);
+                    if (id != null) ids.add(id);
+                }
+                seen.addAll(loadMachines(ids));
+                cursor = page.getCursor();
+            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+
+            byMachine.keySet().retainAll(seen);
+            loadedAt = System.currentTimeMillis();
+            fullReloads.incrementAndGet();
+        } catch (Exception e) {
+            System.err.println("⚠️ Could not load context from Redis, keeping the cached one: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the hashes of the given machines in one pipeline.
+     *
+     * @return the ids that have a context hash
+     */
+    private List<String> loadMachines(List<String> ids) {
+        List<Response<Map<String, String>>> responses = new ArrayList<>(ids.size());
+        try (Pipeline p = reader.pipelined()) {
+            for (String id : ids) responses.add(p.hgetAll(machineKey(id)));
+            p.sync();
+        }
+        List<String> present = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Map<String, String> hash = responses.get(i).get();
+            String id = ids.get(i);
+            if (hash == null || hash.isEmpty()) {
+                byMachine.remove(id);
+                continue;
+            }
+            String[] c = new String[ContextField.VALUES.length];
+            for (ContextField f : ContextField.VALUES) {
+                c[f.ordinal()] = hash.get(f.key());
+            }
+            byMachine.put(id, c);
+            present.add(id);
+        }
+        return present;
+    }
+
+    private static String[] parseJson(String json) {
+        JSONObject o = json != null ? new JSONObject(json) : new JSONObject();
+        String[] parsed = new String[ContextField.VALUES.length];
+        for (ContextField f : ContextField.VALUES) {
+            parsed[f.ordinal()] = o.has(f.key()) ? o.optString(f.key()) : null;
+        }
+        return parsed;
+    }
+
+    private static String machineIdOf(String key) {
+        if (!key.startsWith(MACHINE_KEY_PREFIX) || !key.endsWith(MACHINE_KEY_SUFFIX)) return null;
+        int end = key.length() - MACHINE_KEY_SUFFIX.length();
+        return end > MACHINE_KEY_PREFIX.length() ? key.substring(MACHINE_KEY_PREFIX.length(), end) : null;
+    }
+
+    private void subscribeLoop() {
+        while (running) {
+            try (Jedis jedis = new Jedis(address, clientConfig)) {
+                pubSub = new JedisPubSub() {
+                    @Override
+                    public void onPMessage(String pattern, String ch, String message) {
+                        notifications.incrementAndGet();
+                        if (ch.equals(channel)) {
+                            scheduleReload(message.isBlank() || message.equals("*") ? null : message);
+                            return;
+                        }
+                        String key = ch.substring(keyspacePrefix.length());
+                        if (key.equals(CONTEXT_KEY)) {
+                            // The plant-wide default changed: reloading everything also reads it
+                            scheduleReload(null);
+                            return;
+                        }
+                        String id = machineIdOf(key);
+                        if (id != null) scheduleReload(id);
+                    }
+
+                    @Override
+                    public void onPSubscribe(String pattern, int subscribedChannels) {
+                        // Changes may have been missed while not subscribed
+                        if (subscribedChannels == 2) scheduleReload(null);
+                    }
+                };
+                jedis.psubscribe(pubSub, keyspacePrefix + MACHINE_KEY_PREFIX + "*", channel);
+            } catch (Exception e) {
+                if (!running) return;
+                System.err.println("⚠️ Redis context subscription lost, retrying: " + e.getMessage());
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public String stats() {
+        return "machines=" + byMachine.size() + " fullReloads=" + fullReloads.get() + " machineReloads="
+                + machineReloads.get() + " notifications=" + notifications.get()
+                + " age=" + (System.currentTimeMillis() - loadedAt) + "ms";
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        JedisPubSub p = pubSub;
+        if (p != null && p.isSubscribed()) p.punsubscribe();
+        subscriber.interrupt();
+        refresher.shutdown();
+        reader.close();
+    }
+}
@@ -0,0 +1,297 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds decoded samples per machine for up to {@code REORDER_DELAY_MS} so they can be written to the
+ * hypertable in time order.
+ *
+ * <p>
+ * Per machine the watermark is the newest timestamp seen minus the delay. A sample is released once
+ * its timestamp is at or below the watermark, or once it has been held for the delay, so a quiet
+ * machine is not held back. Samples with a timestamp already held are deduplicated, the later one
+ * wins. A sample older than the last one released for its machine is late: it is released right
+ * away, unless it repeats one of the last released timestamps, in which case it is a retried
+ * duplicate and dropped. At most {@code REORDER_MAX_PER_MACHINE} samples are held per machine; beyond
+ * that the oldest are released early.
+ *
+ * <p>
+ * Every held sample remembers the Kafka partition and offset it came from, so offsets are only
+ * committed up to the oldest sample still held ({@link #minHeldOffset}). Per partition the held
+ * offsets are kept in an ordered map with the number of samples held and their arrival time, updated
+ * when a sample is held or released; the oldest held offset and the next sample to become due are
+ * read from its first entry, without visiting the held samples. The partition and offset of each
+ * released sample stay available by its index in the released list ({@link #releasedPartition},
+ * {@link #releasedOffset}), for the rollups that bound the offsets the same way. Not thread-safe,
+ * owned by one {@link TimescaleWorker}.
+ */
+public class ReorderBuffer {
+
+    private static final int RECENT = 64;
+    private static final Comparator<Held> BY_TIME = Comparator.comparingLong(h -> h.record.getTimestamp());
+
+    private static final class Held {
+        final TelemetryRecord record = new TelemetryRecord();
+        TopicPartition partition;
+        long offset;
+        HeldOffset at;
+        long arrivalNanos;
+    }
+
+    /**
+     * The samples held from one Kafka record. Within a partition they arrive in offset order, so the
+     * first entry of the partition also holds the sample that arrived first.
+     */
+    private static final class HeldOffset {
+        final TopicPartition partition;
+        final long offset;
+        final long arrivalNanos;
+        int samples;
+
+        HeldOffset(TopicPartition partition, long offset, long arrivalNanos) {
+            this.partition = partition;
+            this.offset = offset;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+
+    private static final class MachineState {
+        final TreeMap<Long, Held> held = new TreeMap<>();
+        long newest = Long.MIN_VALUE;
+        long lastReleased = Long.MIN_VALUE;
+        final long[] recent = new long[RECENT];
+        int recentCount;
+
+        boolean releasedRecently(long ts) {
+            for (int i = 0; i < Math.min(recentCount, RECENT); i++) {
+                if (recent[i] == ts) return true;
+            }
+            return false;
+        }
+
+        void released(long ts) {
+            recent[recentCount++ % RECENT] = ts;
+            if (ts > lastReleased) lastReleased = ts;
+        }
+    }
+
+    private final long delayMillis;
+    private final long delayNanos;
+    private final int maxPerMachine;
+    private final Map<String, MachineState> machines = new HashMap<>();
+    private final ArrayDeque<Held> free = new ArrayDeque<>();
+    private final ArrayDeque<Held> releasedHeld = new ArrayDeque<>();
+    // released since the last recycle, in the order of the released list once drained
+    private final ArrayList<Held> out = new ArrayList<>();
+    private final Map<TopicPartition, TreeMap<Long, HeldOffset>> heldOffsets = new HashMap<>();
+    // the offset of the previous add, the samples of one envelope share it
+    private HeldOffset lastOffset;
+    private int held;
+    private long duplicates;
+    private long late;
+    private long overflows;
+
+    public ReorderBuffer(long delayMillis, int maxPerMachine) {
+        this.delayMillis = delayMillis;
+        this.delayNanos = delayMillis * 1_000_000;
+        this.maxPerMachine = maxPerMachine;
+    }
+
+    public static ReorderBuffer fromEnv() {
+        return new ReorderBuffer(
+                Long.parseLong(System.getenv().getOrDefault("REORDER_DELAY_MS", "2000")),
+                Integer.parseInt(System.getenv().getOrDefault("REORDER_MAX_PER_MACHINE", "10000")));
+    }
+
+    /**
+     * Takes a copy of {@code rec}; late samples are released right away, with the next {@link #drain}.
+     */
+    public void add(TelemetryRecord rec, TopicPartition partition, long offset) {
+        MachineState m = machines.computeIfAbsent(rec.getMachine(), k -> new MachineState());
+        long ts = rec.getTimestamp();
+        if (ts <= m.lastReleased) {
+            if (m.releasedRecently(ts)) {
+                duplicates++;
+                return;
+            }
+            late++;
+            Held h = take();
+            h.record.copyFrom(rec);
+            h.partition = partition;
+            h.offset = offset;
+            m.released(ts);
+            releasedHeld.add(h);
+            out.add(h);
+            return;
+        }
+        long now = System.nanoTime();
+        Held h = m.held.get(ts);
+        if (h != null) {
+            duplicates++;
+            unhold(h);
+        } else {
+            h = take();
+            m.held.put(ts, h);
+            held++;
+        }
+        h.record.copyFrom(rec);
+        h.partition = partition;
+        h.offset = offset;
+        h.arrivalNanos = now;
+        hold(h, partition, offset, now);
+        if (ts > m.newest) m.newest = ts;
+        while (m.held.size() > maxPerMachine) {
+            overflows++;
+            release(m, m.held.pollFirstEntry().getValue());
+        }
+    }
+
+    /**
+     * Releases the samples that are due, or all held samples if {@code all}, together with the late
+     * and overflowing samples of the previous adds, sorted by time and without duplicates.
+     *
+     * <p>
+     * The records in {@code released} are owned by the buffer and stay valid until {@link #recycle()}.
+     */
+    public void drain(boolean all, List<TelemetryRecord> released) {
+        long now = System.nanoTime();
+        for (MachineState m : machines.values()) {
+            long watermark = m.newest - delayMillis;
+            Iterator<Map.Entry<Long, Held>> it = m.held.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Held> e = it.next();
+                if (!all && e.getKey() > watermark && now - e.getValue().arrivalNanos < delayNanos) break;
+                it.remove();
+                release(m, e.getValue());
+            }
+        }
+        out.sort(BY_TIME);
+        dropDuplicates();
+        released.clear();
+        for (Held h : out) released.add(h.record);
+    }
+
+    /**
+     * Removes earlier samples with the same machine and timestamp from the time-sorted samples, so a
+     * transaction never writes the same key twice.
+     */
+    private void dropDuplicates() {
+        int kept = 0;
+        for (int i = 0; i < out.size(); i++) {
+            TelemetryRecord r = out.get(i).record;
+            boolean superseded = false;
+            for (int j = i + 1; j < out.size() && out.get(j).record.getTimestamp() == r.getTimestamp(); j++) {
+                if (out.get(j).record.getMachine().equals(r.getMachine())) {
+                    superseded = true;
+                    break;
+                }
+            }
+            if (superseded) {
+                duplicates++;
+            } else {
+                out.set(kept++, out.get(i));
+            }
+        }
+        out.subList(kept, out.size()).clear();
+    }
+
+    /**
+     * The Kafka partition of the {@code i}-th sample of the last {@link #drain}.
+     */
+    public TopicPartition releasedPartition(int i) {
+        return out.get(i).partition;
+    }
+
+    /**
+     * The Kafka offset of the {@code i}-th sample of the last {@link #drain}.
+     */
+    public long releasedOffset(int i) {
+        return out.get(i).offset;
+    }
+
+    private void hold(Held h, TopicPartition partition, long offset, long now) {
+        HeldOffset o = lastOffset;
+        if (o == null || o.samples == 0 || o.offset != offset || !o.partition.equals(partition)) {
+            TreeMap<Long, HeldOffset> offsets = heldOffsets.computeIfAbsent(partition, k -> new TreeMap<>());
+            o = offsets.get(offset);
+            if (o == null) {
+                o = new HeldOffset(partition, offset, now);
+                offsets.put(offset, o);
+            }
+            lastOffset = o;
+        }
+        o.samples++;
+        h.at = o;
+    }
+
+    private void unhold(Held h) {
+        HeldOffset o = h.at;
+        h.at = null;
+        if (--o.samples > 0) return;
+        TreeMap<Long, HeldOffset> offsets = heldOffsets.get(o.partition);
+        offsets.remove(o.offset);
+        if (offsets.isEmpty()) heldOffsets.remove(o.partition);
+    }
+
+    private void release(MachineState m, Held h) {
+        held--;
+        unhold(h);
+        m.released(h.record.getTimestamp());
+        releasedHeld.add(h);
+        out.add(h);
+    }
+
+    /**
+     * Returns the released records for reuse, once they have been written.
+     */
+    public void recycle() {
+        free.addAll(releasedHeld);
+        releasedHeld.clear();
+        out.clear();
+    }
+
+    private Held take() {
+        Held h = free.poll();
+        return h != null ? h : new Held();
+    }
+
+    /**
+     * Oldest offset of the partition with a sample still held, or -1 if none is held.
+     */
+    public long minHeldOffset(TopicPartition partition) {
+        TreeMap<Long, HeldOffset> offsets = heldOffsets.get(partition);
+        return offsets != null ? offsets.firstKey() : -1;
+    }
+
+    public int held() {
+        return held;
+    }
+
+    /**
+     * Nanoseconds until the held sample that arrived first is due without newer data, or -1 if
+     * nothing is held.
+     */
+    public long nanosUntilDue() {
+        if (held == 0) return -1;
+        long now = System.nanoTime();
+        long oldest = now;
+        for (TreeMap<Long, HeldOffset> offsets : heldOffsets.values()) {
+            long arrival = offsets.firstEntry().getValue().arrivalNanos;
+            if (arrival - oldest < 0) oldest = arrival;
+        }
+        return Math.max(0, oldest + delayNanos - now);
+    }
+
+    public String stats() {
+        return "held=" + held + " duplicates=" + duplicates + " late=" + late + " overflows=" + overflows;
+    }
+}
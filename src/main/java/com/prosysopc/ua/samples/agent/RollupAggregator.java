@@ -0,0 +1,457 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.apache.kafka.common.TopicPartition;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregates the samples a {@link TimescaleWorker} writes into tumbling 1-second and 1-minute
+ * windows per machine and signal, so dashboards over long ranges read precomputed rows from
+ * {@code cnc_rollup_1s} and {@code cnc_rollup_1m} instead of aggregating the raw hypertables.
+ *
+ * <p>
+ * Each window keeps min, max, sum, count and last value of every rolled-up field in primitive arrays
+ * that are reused for the next window, so adding a sample does not allocate. A window is finished
+ * when a sample of a later window arrives for its machine, when no sample has arrived for
+ * {@code ROLLUP_GRACE_MS} after the time its end would have arrived, so a machine that stops sending
+ * still gets its last windows written, or by {@link #finishAll()} before the worker's partitions are
+ * revoked. A sample for the window that was finished last opens it again as a further part; samples
+ * for older windows are late and left out. The samples come from the {@link ReorderBuffer} in time
+ * order, so this is rare.
+ *
+ * <p>
+ * Finished windows are collected as rows and written by {@link #write(Connection)} in the worker's
+ * next transaction, as upserts keyed by {@code (signal_id, machine, bucket)}. A row for a bucket that
+ * already exists, e.g. the rest of a window that was finished early or written by another worker
+ * after a rebalance, is merged into it: min and max of both, samples added, the average weighted by
+ * samples and the newer last value.
+ *
+ * <p>
+ * Every window remembers the Kafka partition and the oldest and newest offset of its samples, like
+ * the {@link ReorderBuffer} does for held samples. {@link #limitOffsets} keeps the stored offsets at
+ * or below the oldest offset of every open window and of every finished row that is not written
+ * with them, so after a crash those samples are read again and the windows rebuilt. A row is only
+ * written with offsets above its newest sample, so the records that fed it are never read again and
+ * its samples cannot be added twice. The row also carries the partition and newest offset into the
+ * table; the upsert ignores a part that does not start after the newest offset already merged, so a
+ * part that is written again replaces nothing. The oldest offsets of the open windows are kept per
+ * partition in an ordered map, updated as windows open, take older samples and finish. At most
+ * {@code ROLLUP_MAX_PENDING_ROWS} rows are held while the database is unreachable; beyond that new
+ * rows are dropped. Configured with {@code ROLLUP_SIGNALS}: field names, {@code *} for all numeric
+ * fields (default) or {@code none}. Not thread-safe, owned by one worker.
+ */
+public class RollupAggregator {
+
+    private static final long[] WIDTHS = {1000, 60_000};
+    private static final String[] TABLES = {"cnc_rollup_1s", "cnc_rollup_1m"};
+    private static final String UPSERT = """
+            INSERT INTO %s AS r (bucket, machine, signal_id, min_value, max_value, avg_value, last_value, samples,
+                                 kafka_partition, last_offset)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            ON CONFLICT (signal_id, machine, bucket) DO UPDATE
+            SET min_value = LEAST(r.min_value, EXCLUDED.min_value),
+                max_value = GREATEST(r.max_value, EXCLUDED.max_value),
+                avg_value = (r.avg_value * r.samples + EXCLUDED.avg_value * EXCLUDED.samples)
+                            / (r.samples + EXCLUDED.samples),
+                last_value = EXCLUDED.last_value, samples = r.samples + EXCLUDED.samples,
+                kafka_partition = EXCLUDED.kafka_partition, last_offset = EXCLUDED.last_offset
+            WHERE r.kafka_partition IS DISTINCT FROM EXCLUDED.kafka_partition OR r.last_offset IS NULL
+               OR ? > r.last_offset
+            """;
+
+    private static final class Window {
+        long start = Long.MIN_VALUE;
+        boolean open;
+        // offsets of the samples, Long.MAX_VALUE and -1 while there are none
+        long firstOffset = Long.MAX_VALUE;
+        long lastOffset = -1;
+        // bit i = fields[i] has a value in this window
+        long present;
+        final double[] min;
+        final double[] max;
+        final double[] sum;
+        final double[] last;
+        final long[] lastAt;
+        final int[] count;
+
+        Window(int fields) {
+            min = new double[fields];
+            max = new double[fields];
+            sum = new double[fields];
+            last = new double[fields];
+            lastAt = new long[fields];
+            count = new int[fields];
+        }
+    }
+
+    private static final class Machine {
+        final Window[] windows = new Window[WIDTHS.length];
+        TopicPartition partition;
+        long newest = Long.MIN_VALUE;
+        long arrivalNanos;
+
+        Machine(int fields) {
+            for (int r = 0; r < windows.length; r++) windows[r] = new Window(fields);
+        }
+    }
+
+    /**
+     * Finished windows of one width, one row per machine and field, in parallel arrays.
+     */
+    private static final class Rows {
+        long[] bucket = new long[256];
+        String[] machine = new String[256];
+        int[] field = new int[256];
+        double[] min = new double[256];
+        double[] max = new double[256];
+        double[] avg = new double[256];
+        double[] last = new double[256];
+        int[] count = new int[256];
+        TopicPartition[] partition = new TopicPartition[256];
+        long[] firstOffset = new long[256];
+        long[] lastOffset = new long[256];
+        // written with the offsets of the current transaction
+        boolean[] due = new boolean[256];
+        int size;
+
+        void add(long bucket, String machine, int field, double min, double max, double avg, double last,
+                 int count, TopicPartition partition, long firstOffset, long lastOffset) {
+            if (size == this.bucket.length) grow();
+            this.bucket[size] = bucket;
+            this.machine[size] = machine;
+            this.field[size] = field;
+            this.min[size] = min;
+            this.max[size] = max;
+            this.avg[size] = avg;
+            this.last[size] = last;
+            this.count[size] = count;
+            this.partition[size] = partition;
+            this.firstOffset[size] = firstOffset;
+            this.lastOffset[size] = lastOffset;
+            this.due[size] = false;
+            size++;
+        }
+
+        private void grow() {
+            int n = size * 2;
+            bucket = Arrays.copyOf(bucket, n);
+            machine = Arrays.copyOf(machine, n);
+            field = Arrays.copyOf(field, n);
+            min = Arrays.copyOf(min, n);
+            max = Arrays.copyOf(max, n);
+            avg = Arrays.copyOf(avg, n);
+            last = Arrays.copyOf(last, n);
+            count = Arrays.copyOf(count, n);
+            partition = Arrays.copyOf(partition, n);
+            firstOffset = Arrays.copyOf(firstOffset, n);
+            lastOffset = Arrays.copyOf(lastOffset, n);
+            due = Arrays.copyOf(due, n);
+        }
+
+        /**
+         * Removes the due rows, keeping the order of the others.
+         */
+        void removeDue() {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (due[i]) continue;
+                bucket[kept] = bucket[i];
+                machine[kept] = machine[i];
+                field[kept] = field[i];
+                min[kept] = min[i];
+                max[kept] = max[i];
+                avg[kept] = avg[i];
+                last[kept] = last[i];
+                count[kept] = count[i];
+                partition[kept] = partition[i];
+                firstOffset[kept] = firstOffset[i];
+                lastOffset[kept] = lastOffset[i];
+                due[kept] = false;
+                kept++;
+            }
+            Arrays.fill(machine, kept, size, null);
+            Arrays.fill(partition, kept, size, null);
+            size = kept;
+        }
+    }
+
+    private final CncField[] fields;
+    private final long graceNanos;
+    private final int maxPending;
+    private final Map<String, Machine> machines = new HashMap<>();
+    private final Rows[] pending = new Rows[WIDTHS.length];
+    // per partition: oldest offset of an open window -> number of open windows starting there
+    private final Map<TopicPartition, TreeMap<Long, int[]>> openOffsets = new HashMap<>();
+    private short[] signalIds;
+    private long windows;
+    private long late;
+    private long dropped;
+
+    public RollupAggregator(CncField[] fields, long graceMillis, int maxPending) {
+        if (fields.length > 64) throw new IllegalArgumentException("At most 64 rollup fields");
+        this.fields = fields;
+        this.graceNanos = graceMillis * 1_000_000;
+        this.maxPending = maxPending;
+        for (int r = 0; r < pending.length; r++) pending[r] = new Rows();
+    }
+
+    /**
+     * @return the aggregator, or null if {@code ROLLUP_SIGNALS} is {@code none}
+     */
+    public static RollupAggregator fromEnv() {
+        CncField[] fields = SignalMapping.numericFields(System.getenv().getOrDefault("ROLLUP_SIGNALS", "*"));
+        if (fields.length == 0) return null;
+        return new RollupAggregator(fields,
+                Long.parseLong(System.getenv().getOrDefault("ROLLUP_GRACE_MS", "2000")),
+                Integer.parseInt(System.getenv().getOrDefault("ROLLUP_MAX_PENDING_ROWS", "1000000")));
+    }
+
+    /**
+     * Adds a sample with the full state of its machine, read from {@code offset} of {@code partition}.
+     */
+    public void add(TelemetryRecord rec, TopicPartition partition, long offset) {
+        Machine m = machines.computeIfAbsent(rec.getMachine(), k -> new Machine(fields.length));
+        if (!partition.equals(m.partition)) {
+            // offsets of different partitions do not compare, the windows so far end here
+            for (int r = 0; r < WIDTHS.length; r++) {
+                if (m.windows[r].open) finish(rec.getMachine(), m, m.windows[r], r);
+            }
+            m.partition = partition;
+        }
+        long ts = rec.getTimestamp();
+        m.arrivalNanos = System.nanoTime();
+        if (ts > m.newest) m.newest = ts;
+        for (int r = 0; r < WIDTHS.length; r++) {
+            Window w = m.windows[r];
+            long start = ts - Math.floorMod(ts, WIDTHS[r]);
+            if (start > w.start) {
+                if (w.open) finish(rec.getMachine(), m, w, r);
+                w.start = start;
+                w.open = true;
+            } else if (start < w.start) {
+                late++;
+                continue;
+            } else if (!w.open) {
+                // the rest of a window that was finished early, merged with its first part on write
+                w.open = true;
+            }
+            if (offset < w.firstOffset) {
+                if (w.firstOffset != Long.MAX_VALUE) untrack(partition, w.firstOffset);
+                track(partition, offset);
+                w.firstOffset = offset;
+            }
+            if (offset > w.lastOffset) w.lastOffset = offset;
+            for (int i = 0; i < fields.length; i++) {
+                if (!rec.has(fields[i])) continue;
+                double v = rec.getDouble(fields[i], 0.0);
+                long bit = 1L << i;
+                if ((w.present & bit) == 0) {
+                    w.present |= bit;
+                    w.min[i] = v;
+                    w.max[i] = v;
+                    w.sum[i] = v;
+                    w.last[i] = v;
+                    w.lastAt[i] = ts;
+                    w.count[i] = 1;
+                } else {
+                    if (v < w.min[i]) w.min[i] = v;
+                    if (v > w.max[i]) w.max[i] = v;
+                    w.sum[i] += v;
+                    w.count[i]++;
+                    if (ts >= w.lastAt[i]) {
+                        w.last[i] = v;
+                        w.lastAt[i] = ts;
+                    }
+                }
+            }
+        }
+    }
+
+    private void finish(String machine, Machine m, Window w, int r) {
+        windows++;
+        for (long p = w.present; p != 0; p &= p - 1) {
+            int i = Long.numberOfTrailingZeros(p);
+            if (pending() >= maxPending) {
+                dropped++;
+                continue;
+            }
+            pending[r].add(w.start, machine, i, w.min[i], w.max[i], w.sum[i] / w.count[i], w.last[i], w.count[i],
+                    m.partition, w.firstOffset, w.lastOffset);
+        }
+        if (w.firstOffset != Long.MAX_VALUE) untrack(m.partition, w.firstOffset);
+        w.firstOffset = Long.MAX_VALUE;
+        w.lastOffset = -1;
+        w.present = 0;
+        w.open = false;
+    }
+
+    private void track(TopicPartition partition, long offset) {
+        openOffsets.computeIfAbsent(partition, k -> new TreeMap<>()).computeIfAbsent(offset, k -> new int[1])[0]++;
+    }
+
+    private void untrack(TopicPartition partition, long offset) {
+        TreeMap<Long, int[]> offsets = openOffsets.get(partition);
+        int[] n = offsets.get(offset);
+        if (--n[0] > 0) return;
+        offsets.remove(offset);
+        if (offsets.isEmpty()) openOffsets.remove(partition);
+    }
+
+    /**
+     * Lowers the offsets to store per partition to the oldest offset of an open window, and of a
+     * finished row that is not written with them. If {@code writing}, the rows whose samples all lie
+     * below the resulting offset of their partition are marked to be written by the next
+     * {@link #write(Connection)}; otherwise none is.
+     *
+     * @param next the offsets to store, for every partition that has rows or open windows
+     */
+    public void limitOffsets(Map<TopicPartition, Long> next, boolean writing) {
+        for (Map.Entry<TopicPartition, Long> e : next.entrySet()) {
+            TreeMap<Long, int[]> open = openOffsets.get(e.getKey());
+            if (open != null && open.firstKey() < e.getValue()) e.setValue(open.firstKey());
+        }
+        // holding back a row may lower the offset below the newest sample of a row marked before
+        boolean lowered;
+        do {
+            lowered = false;
+            for (Rows rows : pending) {
+                for (int i = 0; i < rows.size; i++) {
+                    Long limit = next.get(rows.partition[i]);
+                    rows.due[i] = writing && limit != null && rows.lastOffset[i] < limit;
+                    if (!rows.due[i] && limit != null && rows.firstOffset[i] < limit) {
+                        next.put(rows.partition[i], rows.firstOffset[i]);
+                        lowered = true;
+                    }
+                }
+            }
+        } while (lowered);
+    }
+
+    /**
+     * Finishes the windows of machines that have gone quiet.
+     */
+    public void finishIdle() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Machine> e : machines.entrySet()) {
+            Machine m = e.getValue();
+            for (int r = 0; r < WIDTHS.length; r++) {
+                Window w = m.windows[r];
+                if (w.open && now - dueNanos(m, w, r) >= 0) finish(e.getKey(), m, w, r);
+            }
+        }
+    }
+
+    /**
+     * Finishes all open windows, so their rows are written before the partitions move to another
+     * worker.
+     */
+    public void finishAll() {
+        for (Map.Entry<String, Machine> e : machines.entrySet()) {
+            Machine m = e.getValue();
+            for (int r = 0; r < WIDTHS.length; r++) {
+                if (m.windows[r].open) finish(e.getKey(), m, m.windows[r], r);
+            }
+        }
+    }
+
+    /**
+     * Nanoseconds until the next open window of a quiet machine is finished, or -1 if no window is
+     * open.
+     */
+    public long nanosUntilIdle() {
+        long due = Long.MAX_VALUE;
+        for (Machine m : machines.values()) {
+            for (int r = 0; r < WIDTHS.length; r++) {
+                if (m.windows[r].open) due = Math.min(due, dueNanos(m, m.windows[r], r));
+            }
+        }
+        return due == Long.MAX_VALUE ? -1 : Math.max(0, due - System.nanoTime());
+    }
+
+    /**
+     * When the end of the window would have arrived, going by the newest sample of the machine, plus
+     * the grace period.
+     */
+    private long dueNanos(Machine m, Window w, int r) {
+        return m.arrivalNanos + (w.start + WIDTHS[r] - m.newest) * 1_000_000 + graceNanos;
+    }
+
+    public int pending() {
+        int n = 0;
+        for (Rows rows : pending) n += rows.size;
+        return n;
+    }
+
+    /**
+     * The rows marked by {@link #limitOffsets} to be written.
+     */
+    public int due() {
+        int n = 0;
+        for (Rows rows : pending) {
+            for (int i = 0; i < rows.size; i++) {
+                if (rows.due[i]) n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Registers the rolled-up fields in the signal dictionary; must be called on a connection before
+     * {@link #write(Connection)}. Commits if the connection is not in auto-commit mode.
+     */
+    public void resolveSignalIds(Connection conn) throws SQLException {
+        signalIds = SignalMapping.resolveSignalIds(conn, fields);
+    }
+
+    /**
+     * Writes the rows marked by {@link #limitOffsets} as part of the connection's current
+     * transaction, which must store those offsets; the caller commits and then calls
+     * {@link #written()}.
+     */
+    public void write(Connection conn) throws SQLException {
+        for (int r = 0; r < WIDTHS.length; r++) {
+            Rows rows = pending[r];
+            if (rows.size == 0) continue;
+            try (PreparedStatement ps = conn.prepareStatement(UPSERT.formatted(TABLES[r]))) {
+                int batched = 0;
+                for (int i = 0; i < rows.size; i++) {
+                    if (!rows.due[i]) continue;
+                    ps.setTimestamp(1, new Timestamp(rows.bucket[i]));
+                    ps.setString(2, rows.machine[i]);
+                    ps.setShort(3, signalIds[rows.field[i]]);
+                    ps.setDouble(4, rows.min[i]);
+                    ps.setDouble(5, rows.max[i]);
+                    ps.setDouble(6, rows.avg[i]);
+                    ps.setDouble(7, rows.last[i]);
+                    ps.setInt(8, rows.count[i]);
+                    ps.setInt(9, rows.partition[i].partition());
+                    ps.setLong(10, rows.lastOffset[i]);
+                    ps.setLong(11, rows.firstOffset[i]);
+                    ps.addBatch();
+                    batched++;
+                }
+                if (batched > 0) ps.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Discards the rows written by the last {@link #write(Connection)}, once its transaction
+     * committed.
+     */
+    public void written() {
+        for (Rows rows : pending) rows.removeDue();
+    }
+
+    public String stats() {
+        return "rollupWindows=" + windows + " rollupPending=" + pending() + " rollupLate=" + late
+                + " rollupDropped=" + dropped;
+    }
+}
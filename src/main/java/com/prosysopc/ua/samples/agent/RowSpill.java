@@ -0,0 +1,148 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.apache.kafka.common.TopicPartition;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk-backed queue of the samples a {@link TimescaleWorker} could not write while TimescaleDB was
+ * unavailable, kept in a {@link DiskSpool} under {@code SPILL_DIR/worker-<n>}.
+ *
+ * <p>
+ * Each spool entry holds up to {@value #CHUNK} samples, already merged to their full state, as a
+ * binary {@link TelemetryBatchWriter} envelope, preceded by the Kafka offsets that become durable
+ * once the samples are in the database:
+ *
+ * <pre>
+ * varint   partition count
+ *          per partition: string topic, varint partition, varint next offset
+ * envelope the samples, LZ4-compressed
+ * </pre>
+ *
+ * An entry is only removed by {@link #commit()} after its rows and offsets have been committed, so a
+ * crash during replay writes the entry again, which the upserts of the row writers make harmless.
+ * The spool does not evict: rows in the spill already count as written, so once it reaches
+ * {@code SPILL_MAX_MB} {@link #append} fails instead of dropping the oldest rows. Not thread-safe,
+ * owned by one worker.
+ */
+public class RowSpill implements AutoCloseable {
+
+    private static final int CHUNK = 10_000;
+    private static final String TOPIC = "rows";
+
+    private final DiskSpool spool;
+    private final TelemetryBatchWriter batch =
+            new TelemetryBatchWriter(new BinaryTelemetryCodec(true, false), BatchCompression.LZ4);
+    private final EncodeBuffer header = new EncodeBuffer(256);
+    private final DiskSpool.Entry entry = new DiskSpool.Entry();
+    private final BinaryTelemetryCodec.Reader in = new BinaryTelemetryCodec.Reader();
+    private final StringInterner interner = new StringInterner(64);
+    private final TelemetryDecoder decoder = new TelemetryDecoder();
+    private final TelemetryRecord rec = new TelemetryRecord();
+    private long spilledRows;
+    private long replayedRows;
+    private int peeked;
+
+    public RowSpill(DiskSpool spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * Opens the spill of worker {@code index}, or returns null if {@code SPILL_DIR} is not set.
+     */
+    public static RowSpill fromEnv(int index) throws IOException {
+        Map<String, String> env = System.getenv();
+        String dir = env.get("SPILL_DIR");
+        if (dir == null || dir.isBlank()) return null;
+        int segmentBytes = Integer.parseInt(env.getOrDefault("SPILL_SEGMENT_MB", "64")) << 20;
+        long maxBytes = Long.parseLong(env.getOrDefault("SPILL_MAX_MB", "4096")) << 20;
+        RowSpill spill = new RowSpill(new DiskSpool(Paths.get(dir, "worker-" + index), segmentBytes, maxBytes, false));
+        if (!spill.isEmpty()) {
+            System.out.println("Worker " + index + " has " + (spill.usedBytes() >> 10)
+                    + " KB of spilled rows to replay");
+        }
+        return spill;
+    }
+
+    /**
+     * Appends the samples, in chunks of at most {@value #CHUNK}; the offsets go with the last chunk.
+     *
+     * @throws IOException also if the spill is full; chunks appended before stay and are replayed
+     *                     without offsets
+     */
+    public void append(List<TelemetryRecord> samples, Map<TopicPartition, Long> offsets) throws IOException {
+        int i = 0;
+        do {
+            int end = Math.min(samples.size(), i + CHUNK);
+            for (; i < end; i++) batch.add(samples.get(i));
+            writeHeader(i == samples.size() ? offsets : Map.of());
+            byte[] body = batch.finish();
+            byte[] payload = new byte[header.size() + body.length];
+            System.arraycopy(header.array(), 0, payload, 0, header.size());
+            System.arraycopy(body, 0, payload, header.size(), body.length);
+            spool.append(TOPIC, payload);
+        } while (i < samples.size());
+        spilledRows += samples.size();
+    }
+
+    private void writeHeader(Map<TopicPartition, Long> offsets) {
+        header.reset();
+        header.writeVarLong(offsets.size());
+        for (Map.Entry<TopicPartition, Long> e : offsets.entrySet()) {
+            header.writeString(e.getKey().topic());
+            header.writeVarLong(e.getKey().partition());
+            header.writeVarLong(e.getValue());
+        }
+    }
+
+    /**
+     * Decodes the oldest entry into {@code handler} and merges its offsets into {@code offsets},
+     * without removing it.
+     *
+     * @return the number of samples, or -1 if the spill is empty
+     * @throws IllegalArgumentException if the entry is damaged
+     */
+    public int replayNext(TelemetryDecoder.RecordHandler handler, Map<TopicPartition, Long> offsets)
+            throws Exception {
+        if (!spool.peek(entry)) return -1;
+        byte[] p = entry.getPayload();
+        in.reset(p, 0, p.length);
+        int partitions = (int) in.readVarLong();
+        for (int i = 0; i < partitions; i++) {
+            TopicPartition tp = new TopicPartition(in.readString(interner), (int) in.readVarLong());
+            offsets.merge(tp, in.readVarLong(), Math::max);
+        }
+        int pos = in.position();
+        peeked = decoder.decodeAll(p, pos, p.length - pos, rec, handler);
+        return peeked;
+    }
+
+    /**
+     * Removes the entry returned by the last {@link #replayNext}.
+     */
+    public void commit() throws IOException {
+        spool.commit();
+        replayedRows += peeked;
+        peeked = 0;
+    }
+
+    public boolean isEmpty() {
+        return spool.isEmpty();
+    }
+
+    public long usedBytes() {
+        return spool.usedBytes();
+    }
+
+    public String stats() {
+        return "spilled=" + spilledRows + " replayed=" + replayedRows + " " + spool.stats();
+    }
+
+    @Override
+    public void close() throws IOException {
+        spool.close();
+    }
+}
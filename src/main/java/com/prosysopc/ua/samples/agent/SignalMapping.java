@@ -0,0 +1,196 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Maps the {@link CncField}s of a {@link TelemetryRecord} to TimescaleDB storage.
+ *
+ * <p>
+ * A field is written either into a column of the wide {@code cnc_machine} table, into the narrow
+ * {@code cnc_signal_value (time, machine, signal_id, value)} hypertable with one row per field, or
+ * both. Narrow rows refer to the signal by the id of its name in the {@code cnc_signal} dictionary
+ * table, which is filled on startup. Configured with:
+ * <ul>
+ *     <li>{@code TIMESCALE_WIDE_COLUMNS}: {@code Field:column} pairs, by default the five columns of
+ *     {@code cnc_machine}</li>
+ *     <li>{@code TIMESCALE_NARROW_SIGNALS}: field names, {@code *} for all numeric fields without a
+ *     wide column (default) or {@code none}. Only numeric fields can be narrow signals.</li>
+ * </ul>
+ */
+public class SignalMapping {
+
+    public static final String DEFAULT_WIDE_COLUMNS = "MachineStatus:status,ActualSpindleSpeed:spindle_speed,"
+            + "CoolantTemperature:coolant_temp,ToolLifeRemaining:tool_life,ProductionOrderProgress:progress";
+
+    private static final Pattern COLUMN = Pattern.compile("[a-z_][a-z0-9_]*");
+
+    private final CncField[] wideFields;
+    private final String[] wideColumns;
+    private final CncField[] narrowFields;
+    private final short[] signalIds;
+
+    public SignalMapping(CncField[] wideFields, String[] wideColumns, CncField[] narrowFields) {
+        this.wideFields = wideFields;
+        this.wideColumns = wideColumns;
+        this.narrowFields = narrowFields;
+        this.signalIds = new short[narrowFields.length];
+    }
+
+    public static SignalMapping fromEnv() {
+        return parse(System.getenv().getOrDefault("TIMESCALE_WIDE_COLUMNS", DEFAULT_WIDE_COLUMNS),
+                System.getenv().getOrDefault("TIMESCALE_NARROW_SIGNALS", "*"));
+    }
+
+    /**
+     * @throws IllegalArgumentException for unknown fields, invalid column names or text fields listed
+     *                                  as narrow signals
+     */
+    public static SignalMapping parse(String wideSpec, String narrowSpec) {
+        List<CncField> wide = new ArrayList<>();
+        List<String> columns = new ArrayList<>();
+        for (String pair : wideSpec.split(",")) {
+            if (pair.isBlank()) continue;
+            String[] kv = pair.trim().split(":");
+            if (kv.length != 2 || !COLUMN.matcher(kv[1]).matches()) {
+                throw new IllegalArgumentException("Invalid wide column mapping: " + pair);
+            }
+            wide.add(field(kv[0]));
+            columns.add(kv[1]);
+        }
+
+        List<CncField> narrow = new ArrayList<>();
+        String spec = narrowSpec.trim();
+        if (spec.equals("*")) {
+            for (CncField f : CncField.VALUES) {
+                if (!f.isText() && !wide.contains(f)) narrow.add(f);
+            }
+        } else if (!spec.equalsIgnoreCase("none")) {
+            for (String name : spec.split(",")) {
+                if (name.isBlank()) continue;
+                CncField f = field(name);
+                if (f.isText()) throw new IllegalArgumentException("Text field cannot be a narrow signal: " + name);
+                narrow.add(f);
+            }
+        }
+        return new SignalMapping(wide.toArray(new CncField[0]), columns.toArray(new String[0]),
+                narrow.toArray(new CncField[0]));
+    }
+
+    private static CncField field(String name) {
+        CncField f = CncField.byName(name.trim());
+        if (f == null) throw new IllegalArgumentException("Unknown field: " + name);
+        return f;
+    }
+
+    public CncField[] wideFields() {
+        return wideFields;
+    }
+
+    /**
+     * All columns of a {@code cnc_machine} row in write order: time, machine, the mapped fields and
+     * the context columns.
+     */
+    public String wideColumnList() {
+        StringBuilder sb = new StringBuilder("time, machine");
+        for (String c : wideColumns) sb.append(", ").append(c);
+        for (ContextField c : ContextField.VALUES) sb.append(", ").append(c.key());
+        return sb.toString();
+    }
+
+    /**
+     * {@code SET} list of an upsert into {@code cnc_machine}: every column but the key.
+     */
+    public String wideUpdateSet() {
+        List<String> columns = new ArrayList<>(List.of(wideColumns));
+        for (ContextField c : ContextField.VALUES) columns.add(c.key());
+        StringBuilder sb = new StringBuilder();
+        for (String c : columns) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(c).append(" = EXCLUDED.").append(c);
+        }
+        return sb.toString();
+    }
+
+    public int wideColumnCount() {
+        return 2 + wideColumns.length + ContextField.VALUES.length;
+    }
+
+    public CncField[] narrowFields() {
+        return narrowFields;
+    }
+
+    /**
+     * Dictionary id of {@code narrowFields()[i]}, valid after {@link #resolveSignalIds(Connection)}.
+     */
+    public short signalId(int i) {
+        return signalIds[i];
+    }
+
+    /**
+     * Registers the narrow signals in {@code cnc_signal} and loads their ids. Commits if the
+     * connection is not in auto-commit mode.
+     */
+    public void resolveSignalIds(Connection conn) throws SQLException {
+        short[] ids = resolveSignalIds(conn, narrowFields);
+        System.arraycopy(ids, 0, signalIds, 0, ids.length);
+    }
+
+    /**
+     * Registers {@code fields} in {@code cnc_signal} and returns their ids in the same order. Commits
+     * if the connection is not in auto-commit mode.
+     */
+    public static short[] resolveSignalIds(Connection conn, CncField[] fields) throws SQLException {
+        short[] signalIds = new short[fields.length];
+        if (fields.length == 0) return signalIds;
+        try (PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO cnc_signal (name) VALUES (?) ON CONFLICT (name) DO NOTHING")) {
+            for (CncField f : fields) {
+                insert.setString(1, f.fieldName());
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+        Map<String, Short> ids = new HashMap<>();
+        try (PreparedStatement select = conn.prepareStatement("SELECT signal_id, name FROM cnc_signal");
+             ResultSet rs = select.executeQuery()) {
+            while (rs.next()) ids.put(rs.getString(2), rs.getShort(1));
+        }
+        if (!conn.getAutoCommit()) conn.commit();
+        for (int i = 0; i < fields.length; i++) {
+            signalIds[i] = ids.get(fields[i].fieldName());
+        }
+        return signalIds;
+    }
+
+    /**
+     * Numeric fields selected by {@code spec}: field names, {@code *} for all numeric fields or
+     * {@code none}.
+     *
+     * @throws IllegalArgumentException for unknown or text fields
+     */
+    public static CncField[] numericFields(String spec) {
+        List<CncField> fields = new ArrayList<>();
+        spec = spec.trim();
+        if (spec.equals("*")) {
+            for (CncField f : CncField.VALUES) {
+                if (!f.isText()) fields.add(f);
+            }
+        } else if (!spec.equalsIgnoreCase("none")) {
+            for (String name : spec.split(",")) {
+                if (name.isBlank()) continue;
+                CncField f = field(name);
+                if (f.isText()) throw new IllegalArgumentException("Text field is not numeric: " + name);
+                fields.add(f);
+            }
+        }
+        return fields.toArray(new CncField[0]);
+    }
+}
@@ -0,0 +1,164 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Store-and-forward in front of a {@link TelemetryPublisher}: messages the broker cannot take right
+ * now (disconnected, or the in-flight window is full) are appended to a {@link DiskSpool} instead of
+ * being lost, and so are messages whose asynchronous delivery failed.
+ *
+ * <p>
+ * A drain thread replays the spool oldest first while the broker is connected, at most
+ * {@code drainRate} messages per second. It only offers messages to the publisher and backs off when
+ * the window is full, so live samples keep priority over the catch-up. Live and replayed messages
+ * therefore interleave; every message carries its own sample timestamp.
+ */
+public class SpoolingPublisher implements TelemetryPublisher {
+
+    private final TelemetryPublisher delegate;
+    private final DiskSpool spool;
+    private final double drainRate;
+    private final Thread drainer;
+    private volatile boolean running = true;
+
+    private final AtomicLong live = new AtomicLong();
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    public SpoolingPublisher(TelemetryPublisher delegate, DiskSpool spool, double drainRate) {
+        this.delegate = delegate;
+        this.spool = spool;
+        this.drainRate = drainRate;
+
+        if (delegate.transport() instanceof AsyncMqttPublisher async) {
+            async.addCompletionListener((topic, payload, latencyNanos, error) -> {
+                if (error != null) spool(topic, payload);
+            });
+        }
+        drainer = new Thread(this::drainLoop, "mqtt-spool-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Reads {@code SPOOL_SEGMENT_MB} (16), {@code SPOOL_MAX_MB} (1024) and {@code SPOOL_DRAIN_RATE}
+     * (messages per second, 200).
+     */
+    public static SpoolingPublisher fromEnv(TelemetryPublisher delegate, String dir) throws IOException {
+        Map<String, String> env = System.getenv();
+        int segmentBytes = Integer.parseInt(env.getOrDefault("SPOOL_SEGMENT_MB", "16")) << 20;
+        long maxBytes = Long.parseLong(env.getOrDefault("SPOOL_MAX_MB", "1024")) << 20;
+        double drainRate = Double.parseDouble(env.getOrDefault("SPOOL_DRAIN_RATE", "200"));
+        System.out.println("Spooling to " + dir + " while the broker is unavailable (max " + (maxBytes >> 20)
+                + " MB, drain " + drainRate + " msg/s)");
+        return new SpoolingPublisher(delegate, new DiskSpool(Paths.get(dir), segmentBytes, maxBytes), drainRate);
+    }
+
+    @Override
+    public void publish(String topic, byte[] payload) {
+        offer(topic, payload);
+    }
+
+    /**
+     * Always accepts the message: it is sent right away or spooled.
+     */
+    @Override
+    public boolean offer(String topic, byte[] payload) {
+        if (delegate.offer(topic, payload)) {
+            live.incrementAndGet();
+        } else {
+            spool(topic, payload);
+        }
+        return true;
+    }
+
+    private void spool(String topic, byte[] payload) {
+        try {
+            spool.append(topic, payload);
+            spooled.incrementAndGet();
+        } catch (IOException e) {
+            lost.incrementAndGet();
+            System.err.println("⚠️ Could not spool MQTT message: " + e.getMessage());
+        }
+    }
+
+    private void drainLoop() {
+        DiskSpool.Entry entry = new DiskSpool.Entry();
+        long period = (long) (1_000_000_000L / drainRate);
+        long next = System.nanoTime();
+        while (running) {
+            try {
+                if (!delegate.isConnected() || !spool.peek(entry)) {
+                    Thread.sleep(200);
+                    next = System.nanoTime();
+                    continue;
+                }
+                if (!delegate.offer(entry.getTopic(), entry.getPayload())) {
+                    // Window full or connection lost again: leave the room to live traffic
+                    Thread.sleep(50);
+                    continue;
+                }
+                spool.commit();
+                replayed.incrementAndGet();
+
+                next += period;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else if (wait < -1_000_000_000L) {
+                    // Do not burst to make up for time spent waiting for the broker
+                    next = System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("⚠️ Error reading MQTT spool: " + e.getMessage());
+                LockSupport.parkNanos(1_000_000_000L);
+            }
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return delegate.isConnected();
+    }
+
+    @Override
+    public TelemetryPublisher transport() {
+        return delegate.transport();
+    }
+
+    @Override
+    public String stats() {
+        return delegate.stats() + " | live=" + live.get() + " spooled=" + spooled.get() + " replayed="
+                + replayed.get() + " lost=" + lost.get() + " spool: " + spool.stats();
+    }
+
+    /**
+     * Stops the drain; messages still in the spool are replayed after the next start.
+     */
+    @Override
+    public void close() throws MqttException {
+        running = false;
+        drainer.interrupt();
+        try {
+            drainer.join(5_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Deliveries failing while the client disconnects are still spooled
+        delegate.close();
+        try {
+            spool.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
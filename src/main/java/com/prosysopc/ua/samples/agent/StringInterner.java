@@ -0,0 +1,56 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Bounded intern table that maps UTF-8 byte ranges to String instances.
+ *
+ * <p>
+ * A hit compares the bytes in place and returns the cached String, so decoding recurring machine
+ * ids, status values and context strings does not allocate. When the table is full, misses return a
+ * fresh String without caching it. Not thread-safe; use one instance per decoder.
+ */
+public final class StringInterner {
+
+    private final byte[][] keys;
+    private final String[] strings;
+    private final int mask;
+    private final int maxEntries;
+    private int size;
+
+    public StringInterner(int capacity) {
+        int tableSize = Integer.highestOneBit(Math.max(16, capacity * 2 - 1)) << 1;
+        keys = new byte[tableSize][];
+        strings = new String[tableSize];
+        mask = tableSize - 1;
+        maxEntries = tableSize / 2;
+    }
+
+    public String intern(byte[] buf, int off, int len) {
+        int h = hash(buf, off, len);
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            byte[] key = keys[i];
+            if (key == null) {
+                String s = new String(buf, off, len, StandardCharsets.UTF_8);
+                if (size < maxEntries) {
+                    keys[i] = Arrays.copyOfRange(buf, off, off + len);
+                    strings[i] = s;
+                    size++;
+                }
+                return s;
+            }
+            if (Arrays.equals(key, 0, key.length, buf, off, off + len)) {
+                return strings[i];
+            }
+        }
+    }
+
+    private static int hash(byte[] buf, int off, int len) {
+        int h = 0x811C9DC5;
+        for (int i = off; i < off + len; i++) {
+            h = (h ^ buf[i]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,165 @@
+package com.prosysopc.ua.samples.agent;
+
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Cursor over the records of an envelope written by {@link TelemetryBatchWriter}.
+ *
+ * <pre>
+ * reader.open(payload, 0, payload.length);
+ * while (reader.next()) {
+ *     codec.decode(reader.buffer(), reader.recordOffset(), reader.recordLength(), record);
+ * }
+ * </pre>
+ *
+ * Compressed bodies are inflated into a buffer owned by the reader, which is reused for the next
+ * envelope. The body length on the wire is checked before anything is allocated: it may not exceed
+ * {@code BATCH_MAX_ENVELOPE_BYTES} (default 64 MiB), nor, for a compressed body,
+ * {@value #MAX_COMPRESSION_RATIO} times the compressed length. LZ4 bodies go through the safe
+ * decompressor, which is bounded by the compressed length, and every record length is checked
+ * against the rest of the body. Not thread-safe.
+ */
+public class TelemetryBatchReader {
+
+    /** Above the best ratio of deflate (~1032) and LZ4 (~255). */
+    static final int MAX_COMPRESSION_RATIO = 1100;
+
+    private final int maxBodyBytes;
+    private final BinaryTelemetryCodec.Reader in = new BinaryTelemetryCodec.Reader();
+    private byte[] body = new byte[4096];
+    private Inflater inflater;
+    private LZ4SafeDecompressor lz4;
+
+    private byte[] buf;
+    private int remaining;
+    private int recordOffset;
+    private int recordLength;
+
+    public TelemetryBatchReader() {
+        this(Integer.parseInt(System.getenv().getOrDefault("BATCH_MAX_ENVELOPE_BYTES", "67108864")));
+    }
+
+    public TelemetryBatchReader(int maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    public static boolean isEnvelope(byte[] payload, int offset, int length) {
+        return length > 0 && payload[offset] == TelemetryBatchWriter.MAGIC;
+    }
+
+    /**
+     * Positions the cursor before the first record of the envelope.
+     *
+     * @return the number of records in the envelope
+     * @throws IllegalArgumentException if the payload is not a valid envelope
+     */
+    public int open(byte[] payload, int offset, int length) {
+        int end = offset + length;
+        in.reset(payload, offset, end);
+        if (in.readByte() != TelemetryBatchWriter.MAGIC) {
+            throw new IllegalArgumentException("Not a telemetry batch envelope");
+        }
+        int version = in.readByte() & 0xFF;
+        if (version > TelemetryBatchWriter.VERSION) {
+            throw new IllegalArgumentException("Unsupported batch envelope version " + version);
+        }
+        BatchCompression compression = BatchCompression.byId(in.readByte() & 0xFF);
+        long count = in.readVarLong();
+        long bodyLength = in.readVarLong();
+        int pos = in.position();
+        long maxLength = compression == BatchCompression.NONE
+                ? end - pos : Math.min(maxBodyBytes, (long) (end - pos) * MAX_COMPRESSION_RATIO);
+        if (bodyLength < 0 || bodyLength > maxLength) {
+            throw new IllegalArgumentException("Invalid batch envelope body length " + bodyLength
+                    + " (at most " + maxLength + ")");
+        }
+        // every record has at least its length prefix
+        if (count < 0 || count > bodyLength) {
+            throw new IllegalArgumentException("Invalid batch envelope record count " + count);
+        }
+        int length32 = (int) bodyLength;
+
+        if (compression == BatchCompression.NONE) {
+            buf = payload;
+            in.reset(payload, pos, pos + length32);
+        } else {
+            if (body.length < length32) {
+                body = new byte[Math.max(length32, (int) Math.min(maxBodyBytes, body.length * 2L))];
+            }
+            if (compression == BatchCompression.DEFLATE) {
+                inflate(payload, pos, end - pos, length32);
+            } else {
+                unlz4(payload, pos, end - pos, length32);
+            }
+            buf = body;
+            in.reset(body, 0, length32);
+        }
+        remaining = (int) count;
+        return remaining;
+    }
+
+    private void inflate(byte[] src, int off, int len, int bodyLength) {
+        if (inflater == null) inflater = new Inflater(true);
+        inflater.reset();
+        inflater.setInput(src, off, len);
+        int n = 0;
+        try {
+            while (n < bodyLength) {
+                int r = inflater.inflate(body, n, bodyLength - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput())) break;
+                n += r;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt batch envelope: " + e.getMessage());
+        }
+        if (n != bodyLength) throw new IllegalArgumentException("Truncated batch envelope");
+    }
+
+    private void unlz4(byte[] src, int off, int len, int bodyLength) {
+        if (lz4 == null) lz4 = LZ4Factory.fastestInstance().safeDecompressor();
+        int n;
+        try {
+            n = lz4.decompress(src, off, len, body, 0, bodyLength);
+        } catch (LZ4Exception e) {
+            throw new IllegalArgumentException("Corrupt batch envelope: " + e.getMessage());
+        }
+        if (n != bodyLength) throw new IllegalArgumentException("Truncated batch envelope");
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @throws IllegalArgumentException if the record length does not fit the rest of the body
+     *
+     * @return false once all records of the envelope have been visited
+     */
+    public boolean next() {
+        if (remaining == 0) return false;
+        remaining--;
+        long length = in.readVarLong();
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid batch record length " + length);
+        }
+        recordLength = (int) length;
+        recordOffset = in.position();
+        in.skip(recordLength);
+        return true;
+    }
+
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public int recordOffset() {
+        return recordOffset;
+    }
+
+    public int recordLength() {
+        return recordLength;
+    }
+}
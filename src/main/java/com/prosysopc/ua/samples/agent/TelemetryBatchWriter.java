@@ -0,0 +1,105 @@
+package com.prosysopc.ua.samples.agent;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.util.zip.Deflater;
+
+/**
+ * Packs many encoded {@link TelemetryRecord}s into one envelope, so a whole batch travels as a
+ * single MQTT message or Kafka record.
+ *
+ * <pre>
+ * byte     magic 0xCB
+ * byte     envelope version
+ * byte     compression, see {@link BatchCompression}
+ * varint   record count
+ * varint   uncompressed body length
+ * body     per record: varint length + the record in its codec format; compressed as a whole
+ * </pre>
+ *
+ * The records inside keep the format of the codec given to the writer, so JSON and binary records
+ * can both be batched. Not thread-safe.
+ */
+public class TelemetryBatchWriter {
+
+    public static final byte MAGIC = (byte) 0xCB;
+    public static final int VERSION = 1;
+
+    private final TelemetryCodec codec;
+    private final BatchCompression compression;
+    private final EncodeBuffer record = new EncodeBuffer(256);
+    private final EncodeBuffer body = new EncodeBuffer(4096);
+    private final EncodeBuffer out = new EncodeBuffer(4096);
+    private Deflater deflater;
+    private LZ4Compressor lz4;
+    private int count;
+
+    public TelemetryBatchWriter(TelemetryCodec codec, BatchCompression compression) {
+        this.codec = codec;
+        this.compression = compression;
+        if (compression == BatchCompression.DEFLATE) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        } else if (compression == BatchCompression.LZ4) {
+            lz4 = LZ4Factory.fastestInstance().fastCompressor();
+        }
+    }
+
+    public void add(TelemetryRecord r) {
+        codec.encode(r, record);
+        body.writeVarLong(record.size());
+        body.writeBytes(record.array(), 0, record.size());
+        count++;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Uncompressed size of the records added so far.
+     */
+    public int size() {
+        return body.size();
+    }
+
+    /**
+     * Discards the records added since the last {@link #finish()}.
+     */
+    public void reset() {
+        body.reset();
+        count = 0;
+    }
+
+    /**
+     * Returns the envelope of all records added since the last call and starts a new batch.
+     */
+    public byte[] finish() {
+        int len = body.size();
+        out.reset();
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(compression.ordinal());
+        out.writeVarLong(count);
+        out.writeVarLong(len);
+        switch (compression) {
+            case NONE -> out.writeBytes(body.array(), 0, len);
+            case DEFLATE -> {
+                deflater.reset();
+                deflater.setInput(body.array(), 0, len);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.ensure(Math.max(256, len / 2));
+                    out.advance(deflater.deflate(out.array(), out.size(), out.array().length - out.size()));
+                }
+            }
+            case LZ4 -> {
+                int max = lz4.maxCompressedLength(len);
+                out.ensure(max);
+                out.advance(lz4.compress(body.array(), 0, len, out.array(), out.size(), max));
+            }
+        }
+        reset();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,151 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Micro-batching stage in front of a {@link TelemetryPublisher}: samples are collected per machine
+ * and published as one {@link TelemetryBatchWriter envelope} once {@code maxSamples} samples or
+ * {@code maxBytes} bytes are collected, or the oldest sample has waited {@code linger}.
+ *
+ * <p>
+ * A batch is published while holding its lock, so the envelopes of one machine leave in order. A
+ * single daemon thread flushes the batches whose linger time has passed.
+ */
+public class TelemetryBatcher {
+
+    private final class Batch {
+        final String topic;
+        final TelemetryBatchWriter writer;
+        long openedNanos;
+
+        Batch(String machine) {
+            topic = topicForMachine.apply(machine);
+            writer = new TelemetryBatchWriter(codecs.get(), compression);
+        }
+    }
+
+    private final TelemetryPublisher publisher;
+    private final Function<String, String> topicForMachine;
+    private final Supplier<TelemetryCodec> codecs;
+    private final BatchCompression compression;
+    private final int maxSamples;
+    private final int maxBytes;
+    private final long lingerNanos;
+
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    private final LongAdder envelopes = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    public TelemetryBatcher(TelemetryPublisher publisher, Function<String, String> topicForMachine,
+                            Supplier<TelemetryCodec> codecs, BatchCompression compression,
+                            int maxSamples, int maxBytes, long lingerMillis) {
+        this.publisher = publisher;
+        this.topicForMachine = topicForMachine;
+        this.codecs = codecs;
+        this.compression = compression;
+        this.maxSamples = maxSamples;
+        this.maxBytes = maxBytes;
+        this.lingerNanos = lingerMillis * 1_000_000L;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mqtt-batch-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        long tick = Math.max(1, lingerMillis / 2);
+        flusher.scheduleAtFixedRate(this::flushExpired, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads {@code BATCH_MAX_SAMPLES}, {@code BATCH_MAX_BYTES}, {@code BATCH_LINGER_MS} and
+     * {@code BATCH_COMPRESSION} ({@code none}, {@code deflate} or {@code lz4}).
+     *
+     * @return null if batching is disabled ({@code BATCH_MAX_SAMPLES} of 1, the default)
+     */
+    public static TelemetryBatcher fromEnv(TelemetryPublisher publisher, Function<String, String> topicForMachine) {
+        Map<String, String> env = System.getenv();
+        int maxSamples = Integer.parseInt(env.getOrDefault("BATCH_MAX_SAMPLES", "1"));
+        if (maxSamples <= 1) return null;
+        return new TelemetryBatcher(publisher, topicForMachine, TelemetryCodec::fromEnv,
+                BatchCompression.parse(env.getOrDefault("BATCH_COMPRESSION", "none")), maxSamples,
+                Integer.parseInt(env.getOrDefault("BATCH_MAX_BYTES", "65536")),
+                Long.parseLong(env.getOrDefault("BATCH_LINGER_MS", "100")));
+    }
+
+    public void add(TelemetryRecord record) throws MqttException, InterruptedException {
+        Batch batch = batches.computeIfAbsent(record.getMachine(), Batch::new);
+        synchronized (batch) {
+            if (batch.writer.count() == 0) batch.openedNanos = System.nanoTime();
+            batch.writer.add(record);
+            if (batch.writer.count() >= maxSamples || batch.writer.size() >= maxBytes) {
+                publish(batch);
+            }
+        }
+    }
+
+    private void publish(Batch batch) throws MqttException, InterruptedException {
+        int count = batch.writer.count();
+        rawBytes.add(batch.writer.size());
+        byte[] envelope = batch.writer.finish();
+        envelopes.increment();
+        samples.add(count);
+        sentBytes.add(envelope.length);
+        publisher.publish(batch.topic, envelope);
+    }
+
+    private void flushExpired() {
+        long now = System.nanoTime();
+        for (Batch batch : batches.values()) {
+            synchronized (batch) {
+                if (batch.writer.count() > 0 && now - batch.openedNanos >= lingerNanos) {
+                    flush(batch);
+                }
+            }
+        }
+    }
+
+    private void flush(Batch batch) {
+        try {
+            publish(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            errors.increment();
+            System.err.println("⚠️ Error publishing MQTT batch: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the linger timer and publishes every open batch.
+     */
+    public void close() {
+        flusher.shutdown();
+        for (Batch batch : batches.values()) {
+            synchronized (batch) {
+                if (batch.writer.count() > 0) flush(batch);
+            }
+        }
+    }
+
+    public String stats() {
+        long e = envelopes.sum();
+        long raw = rawBytes.sum();
+        return String.format("envelopes=%d samples=%d samples/envelope=%.1f compression=%s ratio=%.2f errors=%d",
+                e, samples.sum(), e == 0 ? 0.0 : (double) samples.sum() / e, compression,
+                raw == 0 ? 1.0 : (double) sentBytes.sum() / raw, errors.sum());
+    }
+}
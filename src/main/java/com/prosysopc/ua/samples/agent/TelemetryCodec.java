@@ -0,0 +1,42 @@
+package com.prosysopc.ua.samples.agent;
+
+/**
+ * Encodes and decodes {@link TelemetryRecord}s for the MQTT and Kafka hops.
+ *
+ * <p>
+ * The output format of an agent is selected with {@code TELEMETRY_FORMAT} ({@code json} by default,
+ * or {@code binary}); decoders detect the format of each payload, so mixed producers can share a
+ * topic. Codec instances keep per-instance buffers and intern tables and are not thread-safe.
+ */
+public interface TelemetryCodec {
+
+    /**
+     * Encodes the record into {@code out}, which is reset first.
+     */
+    void encode(TelemetryRecord record, EncodeBuffer out);
+
+    /**
+     * Decodes a payload into {@code into}, which is cleared first.
+     *
+     * @throws IllegalArgumentException if the payload is not a valid record of this codec
+     */
+    void decode(byte[] payload, int offset, int length, TelemetryRecord into);
+
+    default void decode(byte[] payload, TelemetryRecord into) {
+        decode(payload, 0, payload.length, into);
+    }
+
+    static TelemetryCodec fromEnv() {
+        String format = System.getenv().getOrDefault("TELEMETRY_FORMAT", "json");
+        if (format.equalsIgnoreCase("binary")) {
+            return new BinaryTelemetryCodec(
+                    System.getenv().getOrDefault("TELEMETRY_TIMESTAMP", "varint").equalsIgnoreCase("varint"),
+                    Boolean.parseBoolean(System.getenv().getOrDefault("TELEMETRY_FLOAT32", "false")));
+        }
+        return new JsonTelemetryCodec();
+    }
+
+    static boolean isBinary(byte[] payload, int offset, int length) {
+        return length > 0 && payload[offset] == BinaryTelemetryCodec.MAGIC;
+    }
+}
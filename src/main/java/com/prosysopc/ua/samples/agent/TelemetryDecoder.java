@@ -0,0 +1,61 @@
+package com.prosysopc.ua.samples.agent;
+
+/**
+ * Decodes payloads of either telemetry format, detected from the first byte, as well as batch
+ * envelopes holding many records.
+ *
+ * <p>
+ * Not thread-safe; use one instance per consuming thread.
+ */
+public class TelemetryDecoder {
+
+    public interface RecordHandler {
+        /**
+         * Called with the decoded record, which is reused for the next record of the payload.
+         */
+        void onRecord(TelemetryRecord record) throws Exception;
+    }
+
+    private final JsonTelemetryCodec json = new JsonTelemetryCodec();
+    private final BinaryTelemetryCodec binary = new BinaryTelemetryCodec();
+    private final TelemetryBatchReader batch = new TelemetryBatchReader();
+
+    public void decode(byte[] payload, TelemetryRecord into) {
+        decode(payload, 0, payload.length, into);
+    }
+
+    public void decode(byte[] payload, int offset, int length, TelemetryRecord into) {
+        if (TelemetryCodec.isBinary(payload, offset, length)) {
+            binary.decode(payload, offset, length, into);
+        } else {
+            json.decode(payload, offset, length, into);
+        }
+    }
+
+    /**
+     * Decodes a single record or every record of a batch envelope into {@code into}, calling the
+     * handler after each one.
+     *
+     * @return the number of records handled
+     */
+    public int decodeAll(byte[] payload, TelemetryRecord into, RecordHandler handler) throws Exception {
+        return decodeAll(payload, 0, payload.length, into, handler);
+    }
+
+    public int decodeAll(byte[] payload, int offset, int length, TelemetryRecord into, RecordHandler handler)
+            throws Exception {
+        if (!TelemetryBatchReader.isEnvelope(payload, offset, length)) {
+            decode(payload, offset, length, into);
+            handler.onRecord(into);
+            return 1;
+        }
+        batch.open(payload, offset, length);
+        int n = 0;
+        while (batch.next()) {
+            decode(batch.buffer(), batch.recordOffset(), batch.recordLength(), into);
+            handler.onRecord(into);
+            n++;
+        }
+        return n;
+    }
+}
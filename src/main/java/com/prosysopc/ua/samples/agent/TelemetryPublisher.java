@@ -0,0 +1,69 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.IOException;
+
+/**
+ * Sends encoded telemetry messages to the MQTT broker.
+ *
+ * <p>
+ * The implementation is selected with {@code MQTT_PUBLISH_MODE}: {@code sync} (default) waits for
+ * every message to be acknowledged, {@code async} keeps a window of unacknowledged messages in
+ * flight, see {@link AsyncMqttPublisher}. With {@code SPOOL_DIR} set, the publisher is wrapped in a
+ * {@link SpoolingPublisher} that keeps messages on disk while the broker cannot take them.
+ */
+public interface TelemetryPublisher extends AutoCloseable {
+
+    void publish(String topic, byte[] payload) throws MqttException, InterruptedException;
+
+    /**
+     * Publishes the message only if it can be handed over right away.
+     *
+     * @return false if the broker is unreachable or the send window is full; the message was not sent
+     */
+    boolean offer(String topic, byte[] payload);
+
+    boolean isConnected();
+
+    /**
+     * Returns the publisher that talks to the broker, unwrapping decorators such as
+     * {@link SpoolingPublisher}.
+     */
+    default TelemetryPublisher transport() {
+        return this;
+    }
+
+    /**
+     * Returns a one-line summary of the publisher counters for logging.
+     */
+    String stats();
+
+    @Override
+    void close() throws MqttException;
+
+    static TelemetryPublisher fromEnv(String mqttBroker) throws MqttException {
+        TelemetryPublisher publisher = transportFromEnv(mqttBroker);
+        String spoolDir = System.getenv().getOrDefault("SPOOL_DIR", "");
+        if (spoolDir.isBlank()) return publisher;
+        try {
+            return SpoolingPublisher.fromEnv(publisher, spoolDir);
+        } catch (IOException e) {
+            publisher.close();
+            throw new MqttException(e);
+        }
+    }
+
+    private static TelemetryPublisher transportFromEnv(String mqttBroker) throws MqttException {
+        String mode = System.getenv().getOrDefault("MQTT_PUBLISH_MODE", "sync");
+        int qos = Integer.parseInt(System.getenv().getOrDefault("MQTT_QOS", "1"));
+        if (mode.equalsIgnoreCase("async")) {
+            int maxInflight = Integer.parseInt(System.getenv().getOrDefault("MQTT_MAX_INFLIGHT", "1000"));
+            int queueCapacity = Integer.parseInt(System.getenv().getOrDefault("MQTT_SEND_QUEUE", "10000"));
+            AsyncMqttPublisher.OverflowPolicy policy = AsyncMqttPublisher.OverflowPolicy.valueOf(
+                    System.getenv().getOrDefault("MQTT_QUEUE_POLICY", "block").toUpperCase());
+            return new AsyncMqttPublisher(mqttBroker, qos, maxInflight, queueCapacity, policy);
+        }
+        return new BlockingMqttPublisher(mqttBroker, qos);
+    }
+}
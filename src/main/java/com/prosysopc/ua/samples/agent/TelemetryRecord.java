@@ -0,0 +1,166 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.util.Arrays;
+
+/**
+ * One telemetry sample of a machine: the values of the {@link CncField}s that are present, plus the
+ * optional {@link ContextField}s added by the HydrationAgent.
+ *
+ * <p>
+ * Records are mutable and meant to be reused: codecs decode into an existing instance and
+ * {@link #clear()} resets it without allocating.
+ */
+public final class TelemetryRecord {
+
+    private String machine;
+    private long timestamp;
+    private long presentMask;
+    private final double[] values = new double[CncField.COUNT];
+    private final String[] texts = new String[CncField.COUNT];
+    private final String[] context = new String[ContextField.VALUES.length];
+    private boolean hasContext;
+
+    public void clear() {
+        machine = null;
+        timestamp = 0;
+        presentMask = 0;
+        Arrays.fill(texts, null);
+        clearContext();
+    }
+
+    public String getMachine() {
+        return machine;
+    }
+
+    public void setMachine(String machine) {
+        this.machine = machine;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Bit {@code 1 << field.ordinal()} is set for every field present in the record.
+     */
+    public long getPresentMask() {
+        return presentMask;
+    }
+
+    public boolean has(CncField field) {
+        return (presentMask & field.bit()) != 0;
+    }
+
+    public double getDouble(CncField field, double defaultValue) {
+        return has(field) && !field.isText() ? values[field.ordinal()] : defaultValue;
+    }
+
+    public String getText(CncField field, String defaultValue) {
+        return has(field) && field.isText() ? texts[field.ordinal()] : defaultValue;
+    }
+
+    public void setDouble(CncField field, double value) {
+        values[field.ordinal()] = value;
+        presentMask |= field.bit();
+    }
+
+    public void setText(CncField field, String value) {
+        texts[field.ordinal()] = value;
+        presentMask |= field.bit();
+    }
+
+    public void remove(CncField field) {
+        presentMask &= ~field.bit();
+        texts[field.ordinal()] = null;
+    }
+
+    /**
+     * Sets a field from a value read from OPC UA or JSON; numbers and strings are accepted.
+     *
+     * @return false if the value does not fit the field
+     */
+    public boolean set(CncField field, Object value) {
+        if (field.isText()) {
+            if (value == null) return false;
+            setText(field, value.toString());
+            return true;
+        }
+        if (value instanceof Number) {
+            setDouble(field, ((Number) value).doubleValue());
+            return true;
+        }
+        return false;
+    }
+
+    public boolean hasContext() {
+        return hasContext;
+    }
+
+    public String getContext(ContextField field) {
+        return context[field.ordinal()];
+    }
+
+    public void setContext(ContextField field, String value) {
+        context[field.ordinal()] = value;
+        hasContext = true;
+    }
+
+    public void clearContext() {
+        Arrays.fill(context, null);
+        hasContext = false;
+    }
+
+    /**
+     * Applies a (possibly partial) record on top of this one: the fields present in {@code other}
+     * overwrite ours, the others are kept. Machine and timestamp are taken from {@code other}, the
+     * context only if {@code other} carries one.
+     */
+    public void mergeFrom(TelemetryRecord other) {
+        machine = other.machine;
+        timestamp = other.timestamp;
+        for (long m = other.presentMask; m != 0; m &= m - 1) {
+            int i = Long.numberOfTrailingZeros(m);
+            values[i] = other.values[i];
+            texts[i] = other.texts[i];
+        }
+        presentMask |= other.presentMask;
+        if (other.hasContext) {
+            System.arraycopy(other.context, 0, context, 0, context.length);
+            hasContext = true;
+        }
+    }
+
+    /**
+     * Takes the fields this record does not carry from {@code other}, and the context if this record
+     * has none. Machine and timestamp are kept.
+     */
+    public void fillFrom(TelemetryRecord other) {
+        for (long m = other.presentMask & ~presentMask; m != 0; m &= m - 1) {
+            int i = Long.numberOfTrailingZeros(m);
+            values[i] = other.values[i];
+            texts[i] = other.texts[i];
+        }
+        presentMask |= other.presentMask;
+        if (!hasContext && other.hasContext) {
+            System.arraycopy(other.context, 0, context, 0, context.length);
+            hasContext = true;
+        }
+    }
+
+    /**
+     * Copies all fields and the context of {@code other} into this record.
+     */
+    public void copyFrom(TelemetryRecord other) {
+        machine = other.machine;
+        timestamp = other.timestamp;
+        presentMask = other.presentMask;
+        System.arraycopy(other.values, 0, values, 0, values.length);
+        System.arraycopy(other.texts, 0, texts, 0, texts.length);
+        System.arraycopy(other.context, 0, context, 0, context.length);
+        hasContext = other.hasContext;
+    }
+}
@@ -0,0 +1,70 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Writes {@link TelemetryRecord}s as TimescaleDB rows, one transaction per batch: rows are
+ * collected with {@link #add(TelemetryRecord)} and stored by {@link #commit()}. {@link #flush()}
+ * sends the rows collected so far without committing, so a caller can write them under a savepoint.
+ *
+ * <p>
+ * The TimescaleAgent selects the implementation with {@code TIMESCALE_INGEST_MODE}: {@code insert}
+ * (default) for batched INSERTs, or {@code copy} to stream the rows with {@code COPY ... FROM STDIN}.
+ * Writers are bound to one connection and are not thread-safe.
+ */
+public interface TelemetryRowWriter extends AutoCloseable {
+
+    /**
+     * Collects the row. A writer may send collected rows early; if that fails, all collected rows are
+     * gone from the writer, as after a failed {@link #flush()}.
+     */
+    void add(TelemetryRecord rec) throws SQLException;
+
+    /**
+     * Number of rows added since the last commit or rollback.
+     */
+    int pending();
+
+    /**
+     * Writes the collected rows in the current transaction without committing. The rows are gone
+     * from the writer afterwards, also if the write failed.
+     */
+    void flush() throws SQLException;
+
+    /**
+     * Writes the collected rows and commits the transaction.
+     *
+     * @return the number of rows written in the transaction
+     */
+    int commit() throws SQLException;
+
+    /**
+     * Discards the collected rows and rolls the transaction back.
+     */
+    void rollback();
+
+    @Override
+    void close() throws SQLException;
+
+    /**
+     * Creates the writer selected by {@code TIMESCALE_INGEST_MODE} with the {@link SignalMapping} from
+     * the environment, registering its narrow signals in the signal dictionary.
+     */
+    static TelemetryRowWriter fromEnv(Connection conn) throws SQLException {
+        return create(conn, System.getenv().getOrDefault("TIMESCALE_INGEST_MODE", "insert"));
+    }
+
+    /**
+     * Creates the writer for {@code mode}, {@code insert} or {@code copy}, with the
+     * {@link SignalMapping} from the environment.
+     */
+    static TelemetryRowWriter create(Connection conn, String mode) throws SQLException {
+        SignalMapping mapping = SignalMapping.fromEnv();
+        mapping.resolveSignalIds(conn);
+        if (mode.equalsIgnoreCase("copy")) {
+            return new CopyRowWriter(conn, mapping);
+        }
+        return new JdbcBatchWriter(conn, mapping);
+    }
+}
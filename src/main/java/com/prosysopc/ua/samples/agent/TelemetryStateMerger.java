@@ -0,0 +1,36 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rebuilds the full machine state from report-by-exception messages, which only carry the fields
+ * that changed (see {@link DeadbandFilter}).
+ *
+ * <p>
+ * Full records pass through unchanged. Updates of one machine must not run concurrently; different
+ * machines may be merged from different threads.
+ */
+public class TelemetryStateMerger {
+
+    private final Map<String, TelemetryRecord> state = new ConcurrentHashMap<>();
+
+    /**
+     * Merges {@code record} into the state of its machine and replaces its content with the merged
+     * full state. A record older than the state is late: its values must not overwrite newer ones, so
+     * it only takes the fields it lacks from the state and leaves the state as it is.
+     */
+    public void merge(TelemetryRecord record) {
+        TelemetryRecord machineState = state.computeIfAbsent(record.getMachine(), k -> new TelemetryRecord());
+        if (record.getTimestamp() < machineState.getTimestamp()) {
+            record.fillFrom(machineState);
+            return;
+        }
+        machineState.mergeFrom(record);
+        record.copyFrom(machineState);
+    }
+
+    public int machines() {
+        return state.size();
+    }
+}
@@ -1,85 +1,270 @@
 package com.prosysopc.ua.samples.agent;
 
-import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
-import org.json.JSONObject;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
 
-import java.sql.*;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.time.Duration;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.OptionalLong;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
+/**
+ * Consumes {@code machine_data} and writes it to TimescaleDB with {@code TIMESCALE_WORKERS}
+ * {@link TimescaleWorker}s, each with its own pooled connection.
+ *
+ * <p>
+ * The consumer thread only polls: the records of each partition go to the worker of that partition,
+ * so a partition (and with it a machine) is always written by one worker in order. Offsets are
+ * stored in TimescaleDB in the same transaction as the rows ({@link OffsetStore}), and the consumer
+ * seeks to them whenever partitions are assigned; they are also committed to Kafka for monitoring
+ * and as a fallback. Batch size and flush interval of each worker adapt
+ * to {@code TIMESCALE_LATENCY_SLO_MS}, see {@link BatchSizeController}. A worker with more than
+ * {@code WORKER_MAX_QUEUED_RECORDS} queued has its partitions paused until it caught up to half of
+ * that. On a rebalance the workers first write what they hold of the revoked partitions, then the
+ * offsets are committed and the partitions handed over. While TimescaleDB is down the workers spill
+ * to {@code SPILL_DIR} and replay once it is back, see {@link TimescaleWorker}.
+ */
 public class TimescaleAgent {
 
+    // reWriteBatchedInserts turns a JDBC batch into multi-row INSERTs
+    private static final String URL = "jdbc:postgresql://timescaledb:5432/mydb?reWriteBatchedInserts=true";
+    private static final String USER = "admin";
+    private static final String PASSWORD = "admin123";
+    private static final String GROUP_ID = "timescale-agent-group";
+
     public static void main(String[] args) {
-        String url = "jdbc:postgresql://timescaledb:5432/mydb";
-        String user = "admin";
-        String password = "admin123";
-
-        try (Connection conn = DriverManager.getConnection(url, user, password)) {
-            System.out.println("Connected to TimescaleDB");
-
-            Properties props = new Properties();
-            props.put("bootstrap.servers", "redpanda_broker:9092");
-            props.put("group.id", "timescale-agent-group");
-            props.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
-            props.put("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
-            props.put("auto.offset.reset", "latest");
-            KafkaConsumer<String, String> consumer = new KafkaConsumer<>(props);
-            consumer.subscribe(Collections.singletonList("machine_data"));
+        int workerCount = Integer.parseInt(System.getenv().getOrDefault("TIMESCALE_WORKERS", "4"));
+        int pauseAt = Integer.parseInt(System.getenv().getOrDefault("WORKER_MAX_QUEUED_RECORDS", "20000"));
+        long flushTimeoutMs = Long.parseLong(System.getenv().getOrDefault("REBALANCE_FLUSH_TIMEOUT_MS", "30000"));
+
+        // One connection per worker, and one for the consumer thread to read the stored offsets
+        TimescaleConnectionPool pool = new TimescaleConnectionPool(URL, USER, PASSWORD, workerCount + 1);
+        OffsetStore offsetStore = new OffsetStore(GROUP_ID);
+        TimescaleWorker[] workers = new TimescaleWorker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new TimescaleWorker(i, pool, offsetStore, openSpill(i), pauseAt);
+            workers[i].start();
+        }
+        System.out.println("Started " + workerCount + " TimescaleDB workers");
+
+        ScheduledExecutorService statsLogger = Executors.newSingleThreadScheduledExecutor();
+        statsLogger.scheduleAtFixedRate(() -> {
+            for (TimescaleWorker w : workers) {
+                System.out.println("🗄️ " + w.stats());
+                w.resetLatencies();
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+
+        Properties props = new Properties();
+        props.put("bootstrap.servers", "redpanda_broker:9092");
+        props.put("group.id", GROUP_ID);
+        props.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        props.put("value.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
+        props.put("auto.offset.reset", "latest");
+        // Offsets are committed only after the rows have been committed in the database
+        props.put("enable.auto.commit", "false");
+        props.put("max.poll.records", System.getenv().getOrDefault("KAFKA_MAX_POLL_RECORDS", "5000"));
+
+        Map<TopicPartition, Long> committed = new HashMap<>();
+        try (KafkaConsumer<String, byte[]> consumer = new KafkaConsumer<>(props)) {
+            consumer.subscribe(Collections.singletonList("machine_data"), new ConsumerRebalanceListener() {
+                @Override
+                public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                    awaitWorkers(workers, partitions, flushTimeoutMs);
+                    commitCompleted(consumer, workers, committed, true);
+                    committed.keySet().removeAll(partitions);
+                    System.out.println("Partitions revoked: " + partitions);
+                }
+
+                @Override
+                public void onPartitionsLost(Collection<TopicPartition> partitions) {
+                    // Already owned by another member, committing would fail
+                    committed.keySet().removeAll(partitions);
+                    System.err.println("⚠️ Partitions lost: " + partitions);
+                }
+
+                @Override
+                public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                    System.out.println("Partitions assigned: " + partitions);
+                    seekToStoredOffsets(consumer, pool, offsetStore, partitions);
+                }
+            });
             System.out.println("Subscribed to Kafka topic: machine_data");
 
+            boolean[] paused = new boolean[workerCount];
             while (true) {
-                ConsumerRecords<String, String> records = consumer.poll(Duration.ofSeconds(2));
-                for (ConsumerRecord<String, String> record : records) {
-                    try {
-                        JSONObject json = new JSONObject(record.value());
-                        String machine = json.optString("machine", "unknown");
-                        long timestamp = json.optLong("timestamp", System.currentTimeMillis());
-                        JSONObject data = json.getJSONObject("data");
-                        JSONObject context = json.getJSONObject("context");
-
-                        String status = data.optString("MachineStatus", "unknown");
-                        double spindleSpeed = data.optDouble("ActualSpindleSpeed", 0.0);
-                        double coolantTemp = data.optDouble("CoolantTemperature", 0.0);
-                        double toolLife = data.optDouble("ToolLifeRemaining", 0.0);
-                        double progress = data.optDouble("ProductionOrderProgress", 0.0);
-                        String plant = context.optString("plant", "unknown");
-                        String line = context.optString("line", "unknown");
-                        String operator = context.optString("operator", "unknown");
-                        String shift = context.optString("shift", "unknown");
-
-                        String sql = """
-                            INSERT INTO cnc_machine
-                            (time, machine, status, spindle_speed, coolant_temp, tool_life, progress, plant, line, operator, shift)
-                            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
-                            """;
-                        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                            ps.setTimestamp(1, new Timestamp(timestamp));
-                            ps.setString(2, machine);
-                            ps.setString(3, status);
-                            ps.setDouble(4, spindleSpeed);
-                            ps.setDouble(5, coolantTemp);
-                            ps.setDouble(6, toolLife);
-                            ps.setDouble(7, progress);
-                            ps.setString(8, plant);
-                            ps.setString(9, line);
-                            ps.setString(10, operator);
-                            ps.setString(11, shift);
-                            ps.executeUpdate();
-                            System.out.println("Inserted data for machine " + machine + " (" + status + ")");
-                        }
-
-                    } catch (Exception e) {
-                        System.out.println("Error processing record: " + e.getMessage());
-                    }
+                ConsumerRecords<String, byte[]> records = consumer.poll(Duration.ofMillis(500));
+                for (TopicPartition tp : records.partitions()) {
+                    workerOf(workers, tp).submit(new TimescaleWorker.Batch(tp, records.records(tp)));
                 }
+                commitCompleted(consumer, workers, committed, false);
+                updateLag(consumer, workers);
+                applyBackpressure(consumer, workers, paused);
             }
+        } finally {
+            statsLogger.shutdownNow();
+            for (TimescaleWorker w : workers) w.shutdown();
+            pool.close();
+        }
+    }
+
+    /**
+     * Opens the spill of worker {@code index}; without one the worker keeps retrying while the
+     * database is unreachable.
+     */
+    static RowSpill openSpill(int index) {
+        try {
+            return RowSpill.fromEnv(index);
+        } catch (IOException e) {
+            System.err.println("⚠️ Cannot open the spill of worker " + index + ": " + e.getMessage());
+            return null;
+        }
+    }
 
+    /**
+     * Positions the consumer at the offsets stored with the rows. Partitions without a stored offset,
+     * or all of them if the database cannot be read, start from the offsets committed to Kafka.
+     */
+    static void seekToStoredOffsets(KafkaConsumer<?, ?> consumer, TimescaleConnectionPool pool,
+                                    OffsetStore offsetStore, Collection<TopicPartition> partitions) {
+        if (partitions.isEmpty()) return;
+        Connection conn = null;
+        try {
+            conn = pool.take();
+            Map<TopicPartition, Long> offsets = offsetStore.read(conn, partitions);
+            // The connection may come from a worker, don't leave the read transaction open
+            if (!conn.getAutoCommit()) conn.rollback();
+            offsets.forEach(consumer::seek);
+            System.out.println("Seeked to stored offsets: " + offsets);
         } catch (SQLException e) {
-            e.printStackTrace();
+            System.err.println("⚠️ Could not read stored offsets, using Kafka's: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (conn != null) pool.release(conn);
+        }
+    }
+
+    static TimescaleWorker workerOf(TimescaleWorker[] workers, TopicPartition tp) {
+        return workers[Math.floorMod(tp.partition(), workers.length)];
+    }
+
+    /**
+     * Hands each worker the consumer lag of its partitions, as far as the consumer knows it locally.
+     */
+    static void updateLag(KafkaConsumer<?, ?> consumer, TimescaleWorker[] workers) {
+        long[] lag = new long[workers.length];
+        for (TopicPartition tp : consumer.assignment()) {
+            OptionalLong l = consumer.currentLag(tp);
+            if (l.isPresent()) lag[Math.floorMod(tp.partition(), workers.length)] += l.getAsLong();
+        }
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].setLag(lag[i]);
+        }
+    }
+
+    /**
+     * Pauses the partitions of workers that fell behind and resumes them once they caught up.
+     */
+    static void applyBackpressure(KafkaConsumer<?, ?> consumer, TimescaleWorker[] workers, boolean[] paused) {
+        boolean[] behind = new boolean[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            behind[i] = workers[i].isBehind();
+            if (behind[i] != paused[i]) {
+                System.out.println((behind[i] ? "⏸️ Pausing " : "▶️ Resuming ") + workers[i].getName()
+                        + " partitions, queued records: " + workers[i].queuedRecords());
+                paused[i] = behind[i];
+            }
+        }
+        // Applied on every poll, so partitions assigned to a paused worker after a rebalance are paused too
+        Set<TopicPartition> pause = new HashSet<>();
+        Set<TopicPartition> resume = new HashSet<>();
+        for (TopicPartition tp : consumer.assignment()) {
+            (behind[Math.floorMod(tp.partition(), workers.length)] ? pause : resume).add(tp);
+        }
+        if (!pause.isEmpty()) consumer.pause(pause);
+        if (!resume.isEmpty()) consumer.resume(resume);
+    }
+
+    /**
+     * Commits the offsets the workers completed since the last commit, for the partitions still
+     * assigned. Completed offsets of partitions that were handed over are dropped.
+     */
+    static void commitCompleted(KafkaConsumer<?, ?> consumer, TimescaleWorker[] workers,
+                                Map<TopicPartition, Long> committed, boolean sync) {
+        Set<TopicPartition> assignment = consumer.assignment();
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (TimescaleWorker w : workers) {
+            for (Map.Entry<TopicPartition, Long> e : w.completedOffsets().entrySet()) {
+                TopicPartition tp = e.getKey();
+                if (!assignment.contains(tp)) {
+                    w.completedOffsets().remove(tp, e.getValue());
+                } else if (!e.getValue().equals(committed.get(tp))) {
+                    offsets.put(tp, new OffsetAndMetadata(e.getValue()));
+                }
+            }
+        }
+        if (offsets.isEmpty()) return;
+        offsets.forEach((tp, o) -> committed.put(tp, o.offset()));
+        if (sync) {
+            try {
+                consumer.commitSync(offsets);
+            } catch (RuntimeException e) {
+                System.err.println("⚠️ Offset commit failed, rows may be written again: " + e.getMessage());
+            }
+        } else {
+            consumer.commitAsync(offsets, (o, e) -> {
+                if (e != null) {
+                    // Committed again after the next poll
+                    o.keySet().forEach(committed::remove);
+                    System.err.println("⚠️ Offset commit failed: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Makes the workers of the given partitions write everything they hold, including samples in their
+     * reorder buffers, and waits until they are done or the timeout passed.
+     */
+    static void awaitWorkers(TimescaleWorker[] workers, Collection<TopicPartition> partitions, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        Set<TimescaleWorker> affected = new HashSet<>();
+        for (TopicPartition tp : partitions) {
+            affected.add(workerOf(workers, tp));
+        }
+        for (TimescaleWorker w : affected) {
+            w.flush();
+        }
+        for (TimescaleWorker w : affected) {
+            while (!w.isIdle()) {
+                if (System.currentTimeMillis() > deadline) {
+                    System.err.println("⚠️ " + w.getName() + " did not flush before the rebalance, "
+                            + w.queuedRecords() + " queued records may be written again by the new owner");
+                    return;
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
         }
     }
 }
@@ -0,0 +1,75 @@
+package com.prosysopc.ua.samples.agent;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fixed-size pool of TimescaleDB connections shared by the {@link TimescaleWorker}s. Connections are
+ * opened on demand up to {@code size}; a connection that is no longer valid is closed on release and
+ * replaced by a new one on the next {@link #take()}.
+ */
+public class TimescaleConnectionPool implements AutoCloseable {
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final Semaphore permits;
+    private final LinkedBlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+
+    public TimescaleConnectionPool(String url, String user, String password, int size) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.permits = new Semaphore(size);
+    }
+
+    /**
+     * Returns an idle connection or opens a new one, blocking while all connections are taken.
+     */
+    public Connection take() throws SQLException, InterruptedException {
+        permits.acquire();
+        try {
+            Connection c = idle.poll();
+            return c != null ? c : DriverManager.getConnection(url, user, password);
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void release(Connection c) {
+        if (isValid(c)) {
+            idle.add(c);
+        } else {
+            closeQuietly(c);
+        }
+        permits.release();
+    }
+
+    public boolean isValid(Connection c) {
+        try {
+            return c != null && c.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection c) {
+        try {
+            if (c != null) c.close();
+        } catch (SQLException e) {
+            // already broken
+        }
+    }
+
+    @Override
+    public void close() {
+        Connection c;
+        while ((c = idle.poll()) != null) {
+            closeQuietly(c);
+        }
+    }
+}
@@ -0,0 +1,616 @@
+package com.prosysopc.ua.samples.agent;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes the Kafka records of the partitions assigned to it to TimescaleDB, on its own thread and
+ * with its own connection.
+ *
+ * <p>
+ * The consumer thread of the {@link TimescaleAgent} hands over one {@link Batch} per partition and
+ * poll. The worker collects batches up to the size and flush interval given by its
+ * {@link BatchSizeController} and passes the decoded samples through a {@link ReorderBuffer}. The
+ * samples it releases are written in time order in one transaction, together with the next offset of
+ * each partition, or the offset of its oldest sample still held or still only counted in an unwritten
+ * {@link RollupAggregator} window, in the {@link OffsetStore}. The
+ * offsets are then also published in {@link #completedOffsets()}, from where the consumer thread
+ * commits them to Kafka. A failed transaction is
+ * rolled back and retried with the same samples; meanwhile new batches queue up until
+ * {@link #isBehind()} makes the consumer thread pause the worker's partitions.
+ *
+ * <p>
+ * Only transient errors are worth a retry with the same rows. If the database rejects the batch
+ * with a data or integrity error (SQLSTATE class 22 or 23), e.g. a value outside a CHECK constraint,
+ * the retry writes the samples under savepoints, halving the failing ranges down to the single rows
+ * the database rejects. Those rows are logged and skipped, and the rest commits with the offsets.
+ *
+ * <p>
+ * Retries back off exponentially with jitter, from {@code DB_RETRY_INITIAL_MS} up to
+ * {@code DB_RETRY_MAX_MS}. If the database has been unreachable for {@code SPILL_AFTER_MS} and the
+ * worker has a {@link RowSpill}, the samples and their offsets go to the spill instead and count as
+ * written, so consumption goes on. New samples follow them into the spill until it has been replayed,
+ * with COPY and in slices of {@value #REPLAY_SLICE_MILLIS} ms between batches, once the database
+ * accepts connections again. A full spill rejects the samples, so the worker goes back to retrying
+ * them and its partitions are paused as its queue grows.
+ */
+public class TimescaleWorker extends Thread {
+
+    /**
+     * The records of one partition from one poll.
+     */
+    public record Batch(TopicPartition partition, List<ConsumerRecord<String, byte[]>> records) {
+        long nextOffset() {
+            return records.get(records.size() - 1).offset() + 1;
+        }
+    }
+
+    /** Makes the worker write everything the reorder buffer holds. */
+    private static final Batch FLUSH = new Batch(null, List.of());
+    private static final long REPLAY_SLICE_MILLIS = 1000;
+
+    private final TimescaleConnectionPool pool;
+    private final OffsetStore offsetStore;
+    private final RowSpill spill;
+    private final long retryInitialMillis;
+    private final long retryMaxMillis;
+    private final long spillAfterNanos;
+    private final LinkedBlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger queuedRecords = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Map<TopicPartition, Long> completed = new ConcurrentHashMap<>();
+    private final int pauseAt;
+    private final int resumeAt;
+    private final BatchSizeController controller = BatchSizeController.fromEnv();
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final LongAdder rowsWritten = new LongAdder();
+    private final LongAdder rowsRejected = new LongAdder();
+    private final ReorderBuffer reorder = ReorderBuffer.fromEnv();
+    private final List<TelemetryRecord> released = new ArrayList<>();
+    private final Map<TopicPartition, Long> received = new HashMap<>();
+    private final Map<TopicPartition, Long> stored = new HashMap<>();
+    private boolean behind;
+    private volatile boolean running = true;
+
+    private final TelemetryDecoder decoder = new TelemetryDecoder();
+    private final TelemetryRecord rec = new TelemetryRecord();
+    // Rows always hold the full state, also when HydrationAgent forwards report-by-exception deltas;
+    // merged after reordering so deltas are applied in time order
+    private final TelemetryStateMerger merger = new TelemetryStateMerger();
+    private final RollupAggregator rollups = RollupAggregator.fromEnv();
+    private Connection conn;
+    private TelemetryRowWriter writer;
+    private TelemetryRowWriter replayWriter;
+    private final Map<TopicPartition, Long> replayOffsets = new HashMap<>();
+    private long backoffMillis;
+    // System.nanoTime() when the database became unreachable, -1 while it is reachable
+    private volatile long outageSince = -1;
+    private long retryAt = System.nanoTime();
+
+    /**
+     * @param spill   where samples go while the database is unreachable, or null to keep retrying
+     * @param pauseAt queued records at which the worker counts as behind; it catches up again at half
+     */
+    public TimescaleWorker(int index, TimescaleConnectionPool pool, OffsetStore offsetStore, RowSpill spill,
+                           int pauseAt) {
+        super("timescale-worker-" + index);
+        setDaemon(true);
+        this.pool = pool;
+        this.offsetStore = offsetStore;
+        this.spill = spill;
+        this.retryInitialMillis = Long.parseLong(System.getenv().getOrDefault("DB_RETRY_INITIAL_MS", "500"));
+        this.retryMaxMillis = Long.parseLong(System.getenv().getOrDefault("DB_RETRY_MAX_MS", "30000"));
+        this.spillAfterNanos = Long.parseLong(System.getenv().getOrDefault("SPILL_AFTER_MS", "10000")) * 1_000_000;
+        this.pauseAt = pauseAt;
+        this.resumeAt = pauseAt / 2;
+    }
+
+    /**
+     * Called from the consumer thread.
+     */
+    public void submit(Batch batch) {
+        queuedRecords.addAndGet(batch.records().size());
+        inFlight.incrementAndGet();
+        queue.add(batch);
+    }
+
+    /**
+     * Makes the worker write all held samples; called from the consumer thread before partitions are
+     * revoked. {@link #isIdle()} turns true once they are written.
+     */
+    public void flush() {
+        inFlight.incrementAndGet();
+        queue.add(FLUSH);
+    }
+
+    /**
+     * Whether the partitions of this worker should be paused; called from the consumer thread.
+     * Switches back only once half of the backlog has been written.
+     */
+    public boolean isBehind() {
+        int queued = queuedRecords.get();
+        if (!behind && queued >= pauseAt) {
+            behind = true;
+        } else if (behind && queued <= resumeAt) {
+            behind = false;
+        }
+        return behind;
+    }
+
+    /**
+     * Whether all submitted batches have been written.
+     */
+    public boolean isIdle() {
+        return inFlight.get() == 0;
+    }
+
+    public int queuedRecords() {
+        return queuedRecords.get();
+    }
+
+    /**
+     * Called from the consumer thread with the consumer lag of the worker's partitions.
+     */
+    public void setLag(long consumerLag) {
+        controller.setLag(consumerLag + queuedRecords.get());
+    }
+
+    /**
+     * Next offset per partition of everything written so far. The consumer thread removes the entries
+     * it committed.
+     */
+    public Map<TopicPartition, Long> completedOffsets() {
+        return completed;
+    }
+
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        List<Batch> batches = new ArrayList<>();
+        try {
+            while (running) {
+                boolean flush = collect(batches);
+                for (Batch b : batches) {
+                    if (b == FLUSH) continue;
+                    decode(b);
+                    received.merge(b.partition(), b.nextOffset(), Math::max);
+                }
+                reorder.drain(flush, released);
+                for (int i = 0; i < released.size(); i++) {
+                    TelemetryRecord r = released.get(i);
+                    merger.merge(r);
+                    if (rollups != null) rollups.add(r, reorder.releasedPartition(i), reorder.releasedOffset(i));
+                }
+                if (rollups != null) {
+                    if (flush) rollups.finishAll();
+                    else rollups.finishIdle();
+                }
+                // rollup rows are only written together with the samples, not into the spill
+                Map<TopicPartition, Long> offsets = nextOffsets(spill == null || spill.isEmpty());
+                if (!released.isEmpty() || !offsets.isEmpty() || rollups != null && rollups.due() > 0) {
+                    store(released, offsets);
+                }
+                released.clear();
+                reorder.recycle();
+
+                stored.putAll(offsets);
+                offsets.forEach((tp, o) -> completed.merge(tp, o, Math::max));
+                for (Batch b : batches) {
+                    queuedRecords.addAndGet(-b.records().size());
+                    inFlight.decrementAndGet();
+                }
+                batches.clear();
+
+                if (spill != null && System.nanoTime() - retryAt >= 0 && !spill.isEmpty()) replay();
+            }
+        } catch (InterruptedException e) {
+            // shutdown
+        } finally {
+            closeConnection();
+            if (spill != null) {
+                try {
+                    spill.close();
+                } catch (IOException e) {
+                    System.err.println("⚠️ " + getName() + ": closing the spill failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the first batch, then adds batches until the controller's batch size is reached or its
+     * flush interval has passed. Returns early without a batch when held samples become due or
+     * spilled rows should be replayed.
+     *
+     * @return whether a flush was requested
+     */
+    private boolean collect(List<Batch> batches) throws InterruptedException {
+        long due = nanosUntilWork();
+        Batch b = due < 0 ? queue.take() : queue.poll(due, TimeUnit.NANOSECONDS);
+        boolean flush = false;
+        int records = 0;
+        long deadline = System.nanoTime() + controller.lingerNanos();
+        int limit = controller.batchRecords();
+        while (b != null) {
+            batches.add(b);
+            flush |= b == FLUSH;
+            records += b.records().size();
+            if (records >= limit || flush) break;
+            long wait = deadline - System.nanoTime();
+            b = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+        }
+        return flush;
+    }
+
+    /**
+     * Nanoseconds until held samples are due, a rollup window of a quiet machine is finished or the
+     * next replay of the spill, -1 if none of them.
+     */
+    private long nanosUntilWork() {
+        long due = reorder.nanosUntilDue();
+        if (rollups != null) due = earliest(due, rollups.nanosUntilIdle());
+        if (spill == null || spill.isEmpty()) return due;
+        return earliest(due, Math.max(0, retryAt - System.nanoTime()));
+    }
+
+    private static long earliest(long a, long b) {
+        return a < 0 ? b : b < 0 ? a : Math.min(a, b);
+    }
+
+    /**
+     * The offsets to store with the released samples: per partition the oldest offset still held in
+     * the reorder buffer, or else the next offset after the last batch, lowered to the oldest offset
+     * of a rollup window not written with them; only those that changed.
+     *
+     * @param writingRollups whether the rollup rows that are complete below the offsets are written in
+     *                       the same transaction, see {@link RollupAggregator#limitOffsets}
+     */
+    private Map<TopicPartition, Long> nextOffsets(boolean writingRollups) {
+        Map<TopicPartition, Long> offsets = new HashMap<>();
+        for (Map.Entry<TopicPartition, Long> e : received.entrySet()) {
+            long held = reorder.minHeldOffset(e.getKey());
+            offsets.put(e.getKey(), held >= 0 ? held : e.getValue());
+        }
+        if (rollups != null) rollups.limitOffsets(offsets, writingRollups);
+        offsets.entrySet().removeIf(e -> e.getValue().equals(stored.get(e.getKey())));
+        return offsets;
+    }
+
+    private void decode(Batch b) {
+        for (ConsumerRecord<String, byte[]> record : b.records()) {
+            try {
+                decoder.decodeAll(record.value(), rec, r -> reorder.add(r, b.partition(), record.offset()));
+            } catch (Exception e) {
+                // A payload that cannot be decoded is skipped, it would fail again on retry
+                System.out.println("Error processing record: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes the samples, offsets and finished rollup windows, or spills the samples and offsets while
+     * the spill still holds rows, so the rows of a machine reach the database in time order. Rollup
+     * rows then wait until the spill has been replayed, and hold back the offsets until they are
+     * written.
+     */
+    private void store(List<TelemetryRecord> samples, Map<TopicPartition, Long> offsets)
+            throws InterruptedException {
+        if (spill != null && !spill.isEmpty()) {
+            if (samples.isEmpty() && offsets.isEmpty()) return;
+            if (spill(samples, offsets)) return;
+        }
+        write(samples, offsets);
+    }
+
+    /**
+     * Writes the samples and offsets in one transaction, retrying until it succeeds or, once the
+     * database has been unreachable for {@code SPILL_AFTER_MS}, the samples have been spilled.
+     */
+    private void write(List<TelemetryRecord> samples, Map<TopicPartition, Long> offsets)
+            throws InterruptedException {
+        boolean isolate = false;
+        while (true) {
+            long t0 = System.nanoTime();
+            try {
+                if (writer == null) {
+                    if (conn == null) conn = pool.take();
+                    writer = TelemetryRowWriter.fromEnv(conn);
+                    if (rollups != null) rollups.resolveSignalIds(conn);
+                }
+                if (isolate) {
+                    addIsolated(writer, samples, 0, samples.size());
+                    if (rollups != null) writeRollupsIsolated();
+                } else {
+                    for (TelemetryRecord r : samples) writer.add(r);
+                    if (rollups != null) rollups.write(conn);
+                }
+                offsetStore.write(conn, offsets);
+                rowsWritten.add(writer.commit());
+                if (rollups != null) rollups.written();
+                long nanos = System.nanoTime() - t0;
+                commitLatency.recordNanos(nanos);
+                controller.onCommit(nanos);
+                recovered();
+                return;
+            } catch (SQLException e) {
+                if (writer != null) writer.rollback();
+                if (!isolate && isDataError(e)) {
+                    // The same rows would be rejected on every retry
+                    System.err.println("⚠️ " + getName() + ": batch insert rejected (" + sqlState(e)
+                            + "), isolating the bad rows: " + e.getMessage());
+                    isolate = true;
+                    continue;
+                }
+                boolean unreachable = failed(e, "batch insert");
+                if (unreachable && spill != null && System.nanoTime() - outageSince >= spillAfterNanos) {
+                    // the spill does not take the rollup rows, which then hold back the offsets
+                    Map<TopicPartition, Long> limited = nextOffsets(false);
+                    if (spill(samples, limited)) {
+                        offsets.clear();
+                        offsets.putAll(limited);
+                        return;
+                    }
+                    nextOffsets(true);
+                }
+                Thread.sleep(Math.max(0, (retryAt - System.nanoTime()) / 1_000_000));
+            }
+        }
+    }
+
+    /**
+     * Adds and flushes {@code samples[from, to)} under a savepoint. If the database rejects them with
+     * a data or integrity error, the range is rolled back and written in halves, down to the single
+     * rows, which are skipped.
+     */
+    private void addIsolated(TelemetryRowWriter writer, List<TelemetryRecord> samples, int from, int to)
+            throws SQLException {
+        if (from >= to) return;
+        Savepoint savepoint = conn.setSavepoint();
+        try {
+            for (int i = from; i < to; i++) writer.add(samples.get(i));
+            writer.flush();
+            conn.releaseSavepoint(savepoint);
+        } catch (SQLException e) {
+            if (!isDataError(e)) throw e;
+            conn.rollback(savepoint);
+            if (to - from == 1) {
+                reject(samples.get(from), e);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            addIsolated(writer, samples, from, mid);
+            addIsolated(writer, samples, mid, to);
+        }
+    }
+
+    /**
+     * Writes the finished rollup windows under a savepoint, dropping them if the database rejects them.
+     */
+    private void writeRollupsIsolated() throws SQLException {
+        Savepoint savepoint = conn.setSavepoint();
+        try {
+            rollups.write(conn);
+            conn.releaseSavepoint(savepoint);
+        } catch (SQLException e) {
+            if (!isDataError(e)) throw e;
+            conn.rollback(savepoint);
+            System.err.println("⚠️ " + getName() + ": dropping " + rollups.due() + " rejected rollup rows: "
+                    + e.getMessage());
+        }
+    }
+
+    private void reject(TelemetryRecord r, SQLException e) {
+        rowsRejected.increment();
+        System.err.println("⚠️ " + getName() + ": skipping row of " + r.getMachine() + " at "
+                + Instant.ofEpochMilli(r.getTimestamp()) + " rejected by the database (" + sqlState(e) + "): "
+                + e.getMessage());
+    }
+
+    /**
+     * Appends the samples and their offsets to the spill.
+     *
+     * @return false if the spill could not be written, e.g. because it is full
+     */
+    private boolean spill(List<TelemetryRecord> samples, Map<TopicPartition, Long> offsets) {
+        try {
+            spill.append(samples, offsets);
+            return true;
+        } catch (IOException e) {
+            System.err.println("⚠️ " + getName() + ": spilling rows failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Writes spilled entries oldest first with COPY, one transaction per entry together with its
+     * offsets, for up to {@value #REPLAY_SLICE_MILLIS} ms. An entry the database rejects with a data
+     * error is written again with its bad rows isolated, like in {@link #write}.
+     */
+    private void replay() throws InterruptedException {
+        long until = System.nanoTime() + REPLAY_SLICE_MILLIS * 1_000_000;
+        boolean isolate = false;
+        while (System.nanoTime() - until < 0) {
+            try {
+                if (conn == null) conn = pool.take();
+                if (replayWriter == null) replayWriter = TelemetryRowWriter.create(conn, "copy");
+                replayOffsets.clear();
+                if (isolate) {
+                    if (!replayIsolated()) return;
+                } else {
+                    if (spill.replayNext(replayWriter::add, replayOffsets) < 0) return;
+                }
+                offsetStore.write(conn, replayOffsets);
+                rowsWritten.add(replayWriter.commit());
+                spill.commit();
+                recovered();
+                isolate = false;
+            } catch (SQLException e) {
+                if (replayWriter != null) replayWriter.rollback();
+                if (!isolate && isDataError(e)) {
+                    System.err.println("⚠️ " + getName() + ": replay rejected (" + sqlState(e)
+                            + "), isolating the bad rows: " + e.getMessage());
+                    isolate = true;
+                    continue;
+                }
+                failed(e, "replay");
+                return;
+            } catch (IllegalArgumentException e) {
+                // Damaged entry, it would fail again
+                System.err.println("⚠️ " + getName() + ": skipping unreadable spill entry: " + e.getMessage());
+                replayWriter.rollback();
+                try {
+                    spill.commit();
+                } catch (IOException io) {
+                    System.err.println("⚠️ " + getName() + ": spill commit failed: " + io.getMessage());
+                }
+                return;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                System.err.println("⚠️ " + getName() + ": reading the spill failed: " + e.getMessage());
+                if (replayWriter != null) replayWriter.rollback();
+                retryAt = System.nanoTime() + retryMaxMillis * 1_000_000;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds the oldest spill entry with its bad rows isolated, see {@link #addIsolated}.
+     *
+     * @return false if the spill is empty
+     */
+    private boolean replayIsolated() throws Exception {
+        List<TelemetryRecord> samples = new ArrayList<>();
+        int n = spill.replayNext(r -> {
+            TelemetryRecord copy = new TelemetryRecord();
+            copy.copyFrom(r);
+            samples.add(copy);
+        }, replayOffsets);
+        if (n < 0) return false;
+        addIsolated(replayWriter, samples, 0, samples.size());
+        return true;
+    }
+
+    /**
+     * Rolls back after a failed transaction: drops the connection if the database is unreachable and
+     * schedules the next attempt with exponential backoff and jitter.
+     *
+     * @return whether the database is unreachable
+     */
+    private boolean failed(SQLException e, String what) {
+        boolean unreachable = isConnectionFailure(e);
+        if (unreachable) {
+            closeConnection();
+            if (outageSince < 0) {
+                outageSince = System.nanoTime();
+                System.err.println("⚠️ " + getName() + ": TimescaleDB unreachable, retrying: " + e.getMessage());
+            }
+        } else {
+            System.err.println("⚠️ " + getName() + ": " + what + " failed, retrying: " + e.getMessage());
+        }
+        backoffMillis = backoffMillis == 0 ? retryInitialMillis : Math.min(retryMaxMillis, backoffMillis * 2);
+        long delayMillis = ThreadLocalRandom.current().nextLong(backoffMillis / 2, backoffMillis + 1);
+        retryAt = System.nanoTime() + delayMillis * 1_000_000;
+        return unreachable;
+    }
+
+    /**
+     * Connection errors (SQLSTATE class 08), server shutdown (57P) or a connection that no longer
+     * answers. Other errors that are not {@link #isDataError data errors}, e.g. serialization failures
+     * (40001), are retried on the same connection.
+     */
+    private boolean isConnectionFailure(SQLException e) {
+        String state = sqlState(e);
+        if (state != null && (state.startsWith("08") || state.startsWith("57P"))) return true;
+        return !pool.isValid(conn);
+    }
+
+    /**
+     * Data exceptions (SQLSTATE class 22) and integrity constraint violations (23): the rows are at
+     * fault, not the database.
+     */
+    static boolean isDataError(SQLException e) {
+        String state = sqlState(e);
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
+    /**
+     * The SQLSTATE of the exception, or of the first chained one that has one; a failed JDBC batch
+     * may only carry it on the exception of the failing statement.
+     */
+    static String sqlState(SQLException e) {
+        for (SQLException x = e; x != null; x = x.getNextException()) {
+            if (x.getSQLState() != null) return x.getSQLState();
+        }
+        return null;
+    }
+
+    private void recovered() {
+        if (outageSince >= 0) {
+            System.out.println(getName() + ": TimescaleDB reachable again after "
+                    + (System.nanoTime() - outageSince) / 1_000_000 + " ms");
+            outageSince = -1;
+        }
+        backoffMillis = 0;
+        retryAt = System.nanoTime();
+    }
+
+    public String stats() {
+        long outage = outageSince;
+        String s = getName() + ": rows=" + rowsWritten.sum() + " rejected=" + rowsRejected.sum()
+                + " queued=" + queuedRecords.get() + " "
+                + controller.stats() + " " + reorder.stats() + (rollups != null ? " " + rollups.stats() : "")
+                + "\n  commit: " + commitLatency.summary();
+        if (outage >= 0) s += "\n  outage: " + (System.nanoTime() - outage) / 1_000_000 + " ms";
+        if (spill != null) s += "\n  spill: " + spill.stats();
+        return s;
+    }
+
+    public void resetLatencies() {
+        commitLatency.reset();
+    }
+
+    private void closeConnection() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (SQLException e) {
+                // the connection is going away anyway
+            }
+            writer = null;
+        }
+        if (replayWriter != null) {
+            try {
+                replayWriter.close();
+            } catch (SQLException e) {
+                // the connection is going away anyway
+            }
+            replayWriter = null;
+        }
+        if (conn != null) {
+            pool.release(conn);
+            conn = null;
+        }
+    }
+}
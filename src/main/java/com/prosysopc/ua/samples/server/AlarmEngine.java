@@ -0,0 +1,143 @@
+package com.prosysopc.ua.samples.server;
+
+/**
+ * Evaluates a list of {@link AlarmRule}s for one machine, incrementally: each cycle updates every
+ * rule in O(1) from the new signal values, and the listener hears only about rules that became active
+ * or cleared.
+ *
+ * <p>
+ * The rule state lives in primitive arrays indexed by rule: the N-of-M windows as bit masks with one
+ * bit per cycle, the rate-of-change history as one ring of values and times per rule in a shared
+ * array, and the start of the current crossing of each duration rule. Evaluation does not allocate.
+ * Not thread-safe, used on the simulation thread.
+ */
+public class AlarmEngine {
+
+    public interface Listener {
+        /**
+         * @param rule  index of the rule in the engine
+         * @param value the signal value, or the rate for rate-of-change rules
+         */
+        void onAlarmChange(int rule, boolean active, double value);
+    }
+
+    private static final long NOT_CROSSING = Long.MIN_VALUE;
+
+    private final AlarmRule[] rules;
+    private final Listener listener;
+    private final int[] signal;
+    private final boolean[] active;
+    private final long[] hits;
+    private final long[] hitMask;
+    private final double[] history;
+    private final long[] historyTime;
+    private final int[] historyStart;
+    private final int[] historyCount;
+    private final int[] historyPos;
+    private final long[] since;
+    private int activeCount;
+
+    public AlarmEngine(AlarmRule[] rules, Listener listener) {
+        this.rules = rules;
+        this.listener = listener;
+        int n = rules.length;
+        signal = new int[n];
+        active = new boolean[n];
+        hits = new long[n];
+        hitMask = new long[n];
+        historyStart = new int[n];
+        historyCount = new int[n];
+        historyPos = new int[n];
+        since = new long[n];
+        int historySize = 0;
+        for (int r = 0; r < n; r++) {
+            AlarmRule rule = rules[r];
+            signal[r] = rule.signal().ordinal();
+            hitMask[r] = rule.m() == 64 ? -1L : (1L << rule.m()) - 1;
+            since[r] = NOT_CROSSING;
+            if (rule.kind() == AlarmRule.Kind.RATE_OF_CHANGE) {
+                historyStart[r] = historySize;
+                historySize += rule.m();
+            }
+        }
+        history = new double[historySize];
+        historyTime = new long[historySize];
+    }
+
+    /**
+     * Updates all rules with the signal values of this cycle, indexed by {@link AlarmSignal#ordinal()}.
+     *
+     * @return the number of rules that became active or cleared
+     */
+    public int evaluate(double[] signals, long nowMillis) {
+        int changes = 0;
+        for (int r = 0; r < rules.length; r++) {
+            AlarmRule rule = rules[r];
+            double v = signals[signal[r]];
+            boolean on;
+            switch (rule.kind()) {
+                case THRESHOLD -> on = rule.crosses(v);
+                case N_OF_M -> {
+                    long h = ((hits[r] << 1) | (rule.crosses(v) ? 1 : 0)) & hitMask[r];
+                    hits[r] = h;
+                    on = Long.bitCount(h) >= rule.n();
+                }
+                case RATE_OF_CHANGE -> {
+                    // the ring holds the last m values, the oldest at the write position
+                    int i = historyStart[r] + historyPos[r];
+                    double value = v;
+                    on = false;
+                    if (historyCount[r] == rule.m() && nowMillis > historyTime[i]) {
+                        v = (value - history[i]) * 1000.0 / (nowMillis - historyTime[i]);
+                        on = rule.crosses(v);
+                    } else if (historyCount[r] < rule.m()) {
+                        historyCount[r]++;
+                    }
+                    history[i] = value;
+                    historyTime[i] = nowMillis;
+                    historyPos[r] = historyPos[r] + 1 == rule.m() ? 0 : historyPos[r] + 1;
+                }
+                case DURATION -> {
+                    if (rule.crosses(v)) {
+                        if (since[r] == NOT_CROSSING) since[r] = nowMillis;
+                        on = nowMillis - since[r] >= rule.millis();
+                    } else {
+                        since[r] = NOT_CROSSING;
+                        on = false;
+                    }
+                }
+                default -> on = false;
+            }
+            if (on != active[r]) {
+                active[r] = on;
+                activeCount += on ? 1 : -1;
+                changes++;
+                listener.onAlarmChange(r, on, v);
+            }
+        }
+        return changes;
+    }
+
+    public int activeCount() {
+        return activeCount;
+    }
+
+    /**
+     * @return the index of the first active rule in declaration order, or -1
+     */
+    public int firstActive() {
+        if (activeCount == 0) return -1;
+        for (int r = 0; r < active.length; r++) {
+            if (active[r]) return r;
+        }
+        return -1;
+    }
+
+    public AlarmRule rule(int index) {
+        return rules[index];
+    }
+
+    public int size() {
+        return rules.length;
+    }
+}
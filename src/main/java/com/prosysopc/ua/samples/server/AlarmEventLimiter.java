@@ -0,0 +1,96 @@
+package com.prosysopc.ua.samples.server;
+
+import java.util.ArrayDeque;
+
+/**
+ * Rate limit of the alarm events of all machines, so an alarm storm cannot flood the event
+ * subscriptions: a token bucket of {@code ALARM_EVENTS_PER_SECOND} (default 100) events per second.
+ *
+ * <p>
+ * An event over the limit is not dropped. Its condition is queued and fired by a later
+ * {@link #flush()}, with the state the condition has by then. A condition is queued at most once,
+ * so repeated changes of one condition during a flood become one event. Events of shelved conditions
+ * are left out. Only used on the simulation thread.
+ */
+public class AlarmEventLimiter {
+
+    private static final long WARN_INTERVAL_NANOS = 10_000_000_000L;
+
+    private final double perSecond;
+    private final ArrayDeque<CncAlarmCondition> backlog = new ArrayDeque<>();
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private long warnedAt = System.nanoTime() - WARN_INTERVAL_NANOS;
+    private long fired;
+    private long deferred;
+    private long shelved;
+
+    public AlarmEventLimiter(double perSecond) {
+        this.perSecond = perSecond;
+        this.tokens = perSecond;
+    }
+
+    public static AlarmEventLimiter fromEnv() {
+        return new AlarmEventLimiter(Double.parseDouble(
+                System.getenv().getOrDefault("ALARM_EVENTS_PER_SECOND", "100")));
+    }
+
+    void submit(CncAlarmCondition condition) {
+        if (condition.isShelved()) {
+            shelved++;
+            return;
+        }
+        if (condition.queued) return;
+        refill();
+        if (backlog.isEmpty() && tokens >= 1) {
+            tokens--;
+            fire(condition);
+        } else {
+            condition.queued = true;
+            backlog.add(condition);
+            deferred++;
+        }
+    }
+
+    /**
+     * Fires queued events as far as the limit allows.
+     */
+    void flush() {
+        if (backlog.isEmpty()) return;
+        refill();
+        while (tokens >= 1 && !backlog.isEmpty()) {
+            CncAlarmCondition condition = backlog.poll();
+            condition.queued = false;
+            if (condition.isShelved()) {
+                shelved++;
+                continue;
+            }
+            tokens--;
+            fire(condition);
+        }
+        long now = System.nanoTime();
+        if (!backlog.isEmpty() && now - warnedAt >= WARN_INTERVAL_NANOS) {
+            warnedAt = now;
+            System.err.println("⚠️ Alarm flood: " + backlog.size() + " alarm events waiting (" + stats() + ")");
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(perSecond, tokens + (now - refilledAt) * 1e-9 * perSecond);
+        refilledAt = now;
+    }
+
+    private void fire(CncAlarmCondition condition) {
+        try {
+            condition.fire();
+            fired++;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String stats() {
+        return "alarmEvents=" + fired + " deferred=" + deferred + " shelved=" + shelved;
+    }
+}
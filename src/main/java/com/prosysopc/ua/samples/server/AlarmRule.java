@@ -0,0 +1,132 @@
+package com.prosysopc.ua.samples.server;
+
+/**
+ * Declaration of one alarm condition over a named {@link AlarmSignal}, evaluated by an
+ * {@link AlarmEngine} once per cycle. Immutable and shared by the engines of all machines.
+ *
+ * <ul>
+ *     <li>{@link #threshold}: the signal is above (or below) the limit</li>
+ *     <li>{@link #nOfM}: the threshold was crossed in at least {@code n} of the last {@code m}
+ *     cycles, {@code m} at most 64</li>
+ *     <li>{@link #rateOfChange}: the signal changed faster than {@code limit} per second, measured
+ *     over the last {@code window} cycles; a negative limit with {@code above = false} catches
+ *     falling signals</li>
+ *     <li>{@link #duration}: the threshold has been crossed continuously for {@code millis}</li>
+ * </ul>
+ *
+ * The severity (1-1000, default {@value #DEFAULT_SEVERITY}) is that of the alarm condition the
+ * rule raises, see {@link CncAlarmCondition}.
+ */
+public final class AlarmRule {
+
+    public enum Kind { THRESHOLD, N_OF_M, RATE_OF_CHANGE, DURATION }
+
+    public static final int DEFAULT_SEVERITY = 500;
+
+    private final Kind kind;
+    private final String name;
+    private final AlarmSignal signal;
+    private final boolean above;
+    private final double limit;
+    private final int n;
+    private final int m;
+    private final long millis;
+    private final String message;
+    private final int severity;
+
+    private AlarmRule(Kind kind, String name, String signal, boolean above, double limit, int n, int m,
+                      long millis, String message) {
+        this(kind, name, AlarmSignal.byName(signal), above, limit, n, m, millis, message, DEFAULT_SEVERITY);
+    }
+
+    private AlarmRule(Kind kind, String name, AlarmSignal signal, boolean above, double limit, int n, int m,
+                      long millis, String message, int severity) {
+        this.kind = kind;
+        this.name = name;
+        this.signal = signal;
+        this.above = above;
+        this.limit = limit;
+        this.n = n;
+        this.m = m;
+        this.millis = millis;
+        this.message = message;
+        this.severity = severity;
+    }
+
+    /**
+     * @return this rule with the given severity
+     */
+    public AlarmRule severity(int severity) {
+        if (severity < 1 || severity > 1000) {
+            throw new IllegalArgumentException("Invalid severity " + severity + " in rule " + name);
+        }
+        return new AlarmRule(kind, name, signal, above, limit, n, m, millis, message, severity);
+    }
+
+    public static AlarmRule threshold(String name, String signal, boolean above, double limit, String message) {
+        return new AlarmRule(Kind.THRESHOLD, name, signal, above, limit, 1, 1, 0, message);
+    }
+
+    public static AlarmRule nOfM(String name, String signal, boolean above, double limit, int n, int m,
+                                 String message) {
+        if (m < 1 || m > 64 || n < 1 || n > m) {
+            throw new IllegalArgumentException("Invalid N-of-M window " + n + "/" + m + " in rule " + name);
+        }
+        return new AlarmRule(Kind.N_OF_M, name, signal, above, limit, n, m, 0, message);
+    }
+
+    public static AlarmRule rateOfChange(String name, String signal, boolean above, double limitPerSecond,
+                                         int window, String message) {
+        if (window < 1) throw new IllegalArgumentException("Invalid window " + window + " in rule " + name);
+        return new AlarmRule(Kind.RATE_OF_CHANGE, name, signal, above, limitPerSecond, 1, window, 0, message);
+    }
+
+    public static AlarmRule duration(String name, String signal, boolean above, double limit, long millis,
+                                     String message) {
+        return new AlarmRule(Kind.DURATION, name, signal, above, limit, 1, 1, millis, message);
+    }
+
+    boolean crosses(double v) {
+        return above ? v > limit : v < limit;
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public AlarmSignal signal() {
+        return signal;
+    }
+
+    int n() {
+        return n;
+    }
+
+    /**
+     * Window of an N-of-M or rate-of-change rule in cycles.
+     */
+    int m() {
+        return m;
+    }
+
+    long millis() {
+        return millis;
+    }
+
+    public String message() {
+        return message;
+    }
+
+    public int severity() {
+        return severity;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,41 @@
+package com.prosysopc.ua.samples.server;
+
+/**
+ * The named signals of a {@link CncMachine} that {@link AlarmRule}s can watch. The machine fills
+ * them into a {@code double[]} indexed by ordinal once per cycle.
+ */
+public enum AlarmSignal {
+    /** |actual - target| / target of the spindle speed. */
+    SPINDLE_SPEED_DEVIATION("SpindleSpeedDeviation"),
+    ACTUAL_SPINDLE_SPEED("ActualSpindleSpeed"),
+    ACTUAL_FEED_RATE("ActualFeedRate"),
+    TOOL_LIFE_REMAINING("ToolLifeRemaining"),
+    /** Magnitude of the cutting force vector in N. */
+    CUTTING_FORCE("CuttingForce"),
+    /** |actual - target| of the surface finish in mm. */
+    SURFACE_FINISH_DEVIATION("SurfaceFinishDeviation"),
+    COOLANT_TEMPERATURE("CoolantTemperature"),
+    ACTUAL_COOLANT_FLOW("ActualCoolantFlow");
+
+    public static final AlarmSignal[] VALUES = values();
+
+    private final String signalName;
+
+    AlarmSignal(String signalName) {
+        this.signalName = signalName;
+    }
+
+    public String signalName() {
+        return signalName;
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no signal of that name
+     */
+    public static AlarmSignal byName(String name) {
+        for (AlarmSignal s : VALUES) {
+            if (s.signalName.equals(name)) return s;
+        }
+        throw new IllegalArgumentException("Unknown alarm signal: " + name);
+    }
+}
@@ -0,0 +1,140 @@
+package com.prosysopc.ua.samples.server;
+
+import com.prosysopc.ua.server.NodeManagerUaNode;
+import com.prosysopc.ua.server.nodes.UaObjectNode;
+import com.prosysopc.ua.stack.builtintypes.*;
+import com.prosysopc.ua.stack.core.Identifiers;
+import com.prosysopc.ua.types.opcua.server.AlarmConditionTypeNode;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The {@code AlarmConditionType} instance of one {@link AlarmRule} on one {@link CncMachine}, with
+ * the machine as its source.
+ *
+ * <p>
+ * The node {@code <node>.<Rule>Alarm} is only created when the rule first becomes active, so
+ * machines without alarms do not carry a condition subtree per rule. Activating sets Active, Retain
+ * and unacknowledged, with the rule's severity and message. When the rule clears, the condition only
+ * goes inactive once it has stayed clear for {@code ALARM_DEDUP_MS}, so a flapping rule reports one
+ * activation instead of one per flap; Retain stays set until the alarm is acknowledged.
+ *
+ * <p>
+ * Events are fired through the shared {@link AlarmEventLimiter}. They are not fired while the
+ * condition is shelved: until the shelving time is over, or for a one-shot shelve until the
+ * condition goes inactive. The state methods are called on the simulation thread, the shelving
+ * methods by the {@link CncEventManagerListener}.
+ */
+public class CncAlarmCondition {
+
+    private final NodeManagerUaNode manager;
+    private final UaObjectNode source;
+    private final String nodeName;
+    private final AlarmRule rule;
+    private final AlarmEventLimiter events;
+    private final Map<NodeId, CncAlarmCondition> registry;
+    private final long dedupMillis;
+    private AlarmConditionTypeNode node;
+    private boolean active;
+    private long clearedAt = -1;
+    /** In the backlog of the limiter. */
+    boolean queued;
+
+    private volatile long shelvedUntil;
+    private volatile boolean oneShotShelved;
+
+    CncAlarmCondition(NodeManagerUaNode manager, UaObjectNode source, String nodeName, AlarmRule rule,
+                      AlarmEventLimiter events, Map<NodeId, CncAlarmCondition> registry, long dedupMillis) {
+        this.manager = manager;
+        this.source = source;
+        this.nodeName = nodeName;
+        this.rule = rule;
+        this.events = events;
+        this.registry = registry;
+        this.dedupMillis = dedupMillis;
+    }
+
+    /**
+     * The rule became active or cleared.
+     */
+    void update(boolean ruleActive, String message, long nowMillis) {
+        if (!ruleActive) {
+            if (active && clearedAt < 0) clearedAt = nowMillis;
+            tick(nowMillis);
+            return;
+        }
+        clearedAt = -1;
+        if (active) return;
+        if (node == null && (node = createNode()) == null) return;
+
+        active = true;
+        node.setActive(true);
+        node.setRetain(true);
+        node.setAcked(false); // Also sets confirmed to false
+        node.setSeverity(rule.severity());
+        node.setMessage(LocalizedText.english(message));
+        events.submit(this);
+    }
+
+    /**
+     * Reports a cleared rule as inactive once it has stayed clear for the dedup time.
+     */
+    void tick(long nowMillis) {
+        if (clearedAt < 0 || nowMillis - clearedAt < dedupMillis) return;
+        clearedAt = -1;
+        active = false;
+        node.setActive(false);
+        node.setRetain(!node.isAcked());
+        oneShotShelved = false;
+        events.submit(this);
+    }
+
+    private AlarmConditionTypeNode createNode() {
+        try {
+            int ns = manager.getNamespaceIndex();
+            String name = rule.name() + "Alarm";
+            NodeId id = new NodeId(ns, nodeName + "." + name);
+            AlarmConditionTypeNode alarm = manager.createInstance(AlarmConditionTypeNode.class, name, id);
+            alarm.setSource(source);
+            alarm.setEnabled(true);
+            source.addComponent(alarm);
+            source.addReference(alarm, Identifiers.HasCondition, false);
+            registry.put(id, this);
+            return alarm;
+        } catch (Exception e) {
+            System.err.println("⚠️ Could not create alarm condition " + rule.name() + " on " + nodeName);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Sends an event with the current state of the condition.
+     */
+    void fire() {
+        DateTime now = DateTime.currentTime();
+        node.triggerEvent(now, now, ByteString.fromUUID(UUID.randomUUID()));
+    }
+
+    boolean isShelved() {
+        return oneShotShelved || System.currentTimeMillis() < shelvedUntil;
+    }
+
+    void shelve(double millis) {
+        shelvedUntil = System.currentTimeMillis() + (long) millis;
+    }
+
+    void shelveOneShot() {
+        oneShotShelved = true;
+    }
+
+    void unshelve() {
+        oneShotShelved = false;
+        shelvedUntil = 0;
+    }
+
+    AlarmRule rule() {
+        return rule;
+    }
+}
@@ -0,0 +1,62 @@
+package com.prosysopc.ua.samples.server;
+
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.server.ServiceContext;
+import com.prosysopc.ua.stack.builtintypes.ByteString;
+import com.prosysopc.ua.stack.builtintypes.LocalizedText;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.types.opcua.server.AcknowledgeableConditionTypeNode;
+import com.prosysopc.ua.types.opcua.server.AlarmConditionTypeNode;
+import com.prosysopc.ua.types.opcua.server.ShelvedStateMachineTypeNode;
+
+import java.util.Map;
+
+/**
+ * Event manager listener of the {@link CncNodeManager}. Acknowledges and confirms like the
+ * {@link MyEventManagerListener}, and also clears Retain when an inactive alarm is acknowledged.
+ * Shelving is left to the SDK's shelving state machine; the listener only tells the
+ * {@link CncAlarmCondition} so it stops firing events.
+ */
+public class CncEventManagerListener extends MyEventManagerListener {
+
+    private final Map<NodeId, CncAlarmCondition> conditions;
+
+    public CncEventManagerListener(Map<NodeId, CncAlarmCondition> conditions) {
+        this.conditions = conditions;
+    }
+
+    @Override
+    public boolean onAcknowledge(ServiceContext serviceContext, AcknowledgeableConditionTypeNode condition,
+                                 ByteString eventId, LocalizedText comment) throws StatusException {
+        boolean handled = super.onAcknowledge(serviceContext, condition, eventId, comment);
+        if (condition instanceof AlarmConditionTypeNode && !((AlarmConditionTypeNode) condition).isActive()) {
+            condition.setRetain(false);
+        }
+        return handled;
+    }
+
+    @Override
+    public boolean onOneshotShelve(ServiceContext serviceContext, AlarmConditionTypeNode condition,
+                                   ShelvedStateMachineTypeNode stateMachine) throws StatusException {
+        CncAlarmCondition c = conditions.get(condition.getNodeId());
+        if (c != null) c.shelveOneShot();
+        return false;
+    }
+
+    @Override
+    public boolean onTimedShelve(ServiceContext serviceContext, AlarmConditionTypeNode condition,
+                                 ShelvedStateMachineTypeNode stateMachine, double shelvingTime)
+            throws StatusException {
+        CncAlarmCondition c = conditions.get(condition.getNodeId());
+        if (c != null) c.shelve(shelvingTime);
+        return false;
+    }
+
+    @Override
+    public boolean onUnshelve(ServiceContext serviceContext, AlarmConditionTypeNode condition,
+                              ShelvedStateMachineTypeNode stateMachine) throws StatusException {
+        CncAlarmCondition c = conditions.get(condition.getNodeId());
+        if (c != null) c.unshelve();
+        return false;
+    }
+}
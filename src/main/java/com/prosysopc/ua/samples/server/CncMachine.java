@@ -0,0 +1,436 @@
+package com.prosysopc.ua.samples.server;
+
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.server.nodes.*;
+import com.prosysopc.ua.stack.builtintypes.*;
+import com.prosysopc.ua.stack.core.Identifiers;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One instance of {@link CncMachineType} under {@code Objects}: its variable nodes and the primitive
+ * state of its simulation.
+ *
+ * <p>
+ * The variables get the NodeIds {@code <node>.<variable>}, e.g. {@code CncMachine.ActualSpindleSpeed}.
+ * The state is only changed on the simulation thread of {@link CncNodeManager}, which calls
+ * {@link #step}, {@link #publish()} and {@link #cycle()}, and runs the methods that change the state
+ * through {@code update}.
+ *
+ * <p>
+ * {@code MachineStatus} follows the {@link CncMachineState} machine. Commands are checked against
+ * its transitions and return right away; the end of a timed transition, such as Starting to Running,
+ * is scheduled on the shared simulation executor. A command or alarm during a timed transition
+ * cancels it. An invalid command fails with {@code Bad_InvalidState}.
+ *
+ * <p>
+ * Alarms are the {@link #ALARM_RULES}, evaluated by an {@link AlarmEngine} once per cycle.
+ * {@code AlarmMessage} is only written when a rule becomes active or clears, and an active rule puts
+ * the machine into Error. Each rule also drives an {@code AlarmConditionType} instance, see
+ * {@link CncAlarmCondition}.
+ */
+public class CncMachine {
+
+    /**
+     * Configuration of one machine.
+     *
+     * @param nodeName     NodeId and browse name of the object
+     * @param machineName  value of {@code MachineName}
+     * @param serialNumber value of {@code MachineSerialNumber}
+     */
+    public record Config(String nodeName, String machineName, String serialNumber) {
+    }
+
+    private static final int CUTTER_TEETH = 4;
+    private static final double TWO_PI = 2 * Math.PI;
+    private static final long SPIN_UP_MS = 2000;
+    private static final long SPIN_DOWN_MS = 2000;
+
+    /**
+     * Checked once per cycle; {@code AlarmMessage} shows the first active rule.
+     */
+    static final AlarmRule[] ALARM_RULES = {
+            AlarmRule.threshold("SpindleDeviation", "SpindleSpeedDeviation", true, 0.15,
+                    "SpindleSpeed >15% deviation").severity(800),
+            AlarmRule.nOfM("SpindleDeviation3", "SpindleSpeedDeviation", true, 0.05, 3, 3,
+                    "SpindleSpeed >5% for 3 cycles").severity(600),
+            AlarmRule.threshold("ToolWear", "ToolLifeRemaining", false, 10, "Tool wear alarm: life <10%")
+                    .severity(500),
+            AlarmRule.threshold("ToolBreakage", "CuttingForce", true, 1.5 * 600, "Tool breakage detected")
+                    .severity(900),
+            AlarmRule.threshold("Tolerance", "SurfaceFinishDeviation", true, 0.01,
+                    "Dimensional tolerance ±0.01mm exceeded").severity(600),
+            AlarmRule.duration("CoolantHot", "CoolantTemperature", true, 35.0, 10_000,
+                    "Coolant temperature >35°C for 10 s").severity(700),
+            AlarmRule.rateOfChange("CoolantRising", "CoolantTemperature", true, 0.5, 5,
+                    "Coolant temperature rising >0.5°C/s").severity(400),
+            AlarmRule.duration("CoolantFlowLow", "ActualCoolantFlow", false, 10.0, 5_000,
+                    "Coolant flow <10 l/min for 5 s").severity(700)
+    };
+
+    private final CncNodeManager manager;
+    private final CncMachineType type;
+    private final ScheduledExecutorService scheduler;
+    private final String nodeName;
+    private final NodeId nodeId;
+    private final UaObjectNode machineNode;
+
+    private final UaVariableNode statusNode;
+    private final UaVariableNode spindleTargetNode;
+    private final UaVariableNode spindleActualNode;
+    private final UaVariableNode feedTargetNode;
+    private final UaVariableNode feedActualNode;
+    private final UaVariableNode toolLifeNode;
+    private final UaVariableNode coolantTempNode;
+    private final UaVariableNode xNode, yNode, zNode;
+    private final UaVariableNode productionProgressNode;
+    private final UaVariableNode alarmNode;
+    private final UaVariableNode orderNode, articleNode, quantityNode;
+    private final UaVariableNode cuttingForceX, cuttingForceY, cuttingForceZ;
+    private final UaVariableNode surfaceTarget, surfaceActual;
+    private final UaVariableNode goodPartsNode, badPartsNode, totalPartsNode;
+    private final UaVariableNode targetCoolantFlowNode, actualCoolantFlowNode;
+    private final UaVariableNode targetCycleTimeNode, actualCycleTimeNode;
+
+    // Guarded by this
+    private CncMachineState state = CncMachineState.RUNNING;
+    private ScheduledFuture<?> pending;
+    private long transitions;
+
+    // Only used on the simulation thread
+    private final AlarmEngine alarms = new AlarmEngine(ALARM_RULES, this::onAlarmChange);
+    private final double[] signals = new double[AlarmSignal.VALUES.length];
+    private final String[] alarmMessages = new String[ALARM_RULES.length];
+    private final CncAlarmCondition[] conditions = new CncAlarmCondition[ALARM_RULES.length];
+    private String alarmMessage = "OK";
+    private long cycleMillis;
+
+    // Simulation state, changed only on the simulation thread and pushed to the nodes by publish()
+    private double spindleTarget = 8500.0, spindleActual = 8487.0;
+    private double feedTarget = 1200.0, feedActual = 1198.0;
+    private double toolLife = 73.2;
+    private double coolantTemp = 22.5;
+    private double x = 125.847, y = 89.234, z = -45.678;
+    private double sfTarget = 0.8, sfActual = 0.75;
+    private double progress = 57.5;
+    private double quantity = 120.0;
+    private double forceX = 245.7, forceY = 189.3, forceZ = 567.8;
+    private double coolantFlowTarget = 25.0, coolantFlowActual = 24.8;
+    private double cycleTimeTarget = 75.0, cycleTimeActual = 73.2;
+    private double goodParts = 2847.0, badParts = 23.0, totalParts = 2870.0;
+    private double toothPhase;
+
+    CncMachine(CncNodeManager manager, CncMachineType type, Config config, ScheduledExecutorService scheduler)
+            throws StatusException {
+        this.manager = manager;
+        this.type = type;
+        this.scheduler = scheduler;
+        this.nodeName = config.nodeName();
+        int ns = manager.getNamespaceIndex();
+
+        this.nodeId = new NodeId(ns, nodeName);
+        machineNode = new UaObjectNode(manager, nodeId,
+                new QualifiedName(ns, nodeName), LocalizedText.english(config.machineName()));
+        machineNode.setTypeDefinitionId(type.getNodeId());
+        UaObjectNode objectsFolder = manager.getServer().getNodeManagerRoot().getObjectsFolder();
+        manager.addNodeAndReference(objectsFolder, machineNode, Identifiers.Organizes);
+        objectsFolder.addReference(machineNode, Identifiers.HasNotifier, false);
+        for (int r = 0; r < conditions.length; r++) {
+            conditions[r] = new CncAlarmCondition(manager, machineNode, nodeName, ALARM_RULES[r],
+                    manager.alarmEvents(), manager.alarmConditions(), manager.alarmDedupMillis());
+        }
+
+        statusNode = createVar("MachineStatus", state.toString());
+        spindleTargetNode = createVar("TargetSpindleSpeed", spindleTarget);
+        spindleActualNode = createVar("ActualSpindleSpeed", spindleActual);
+        feedTargetNode = createVar("TargetFeedRate", feedTarget);
+        feedActualNode = createVar("ActualFeedRate", feedActual);
+        toolLifeNode = createVar("ToolLifeRemaining", toolLife);
+        coolantTempNode = createVar("CoolantTemperature", coolantTemp);
+        xNode = createVar("X", x);
+        yNode = createVar("Y", y);
+        zNode = createVar("Z", z);
+        surfaceTarget = createVar("TargetSurfaceFinish", sfTarget);
+        surfaceActual = createVar("ActualSurfaceFinish", sfActual);
+        productionProgressNode = createVar("ProductionOrderProgress", progress);
+        alarmNode = createVar("AlarmMessage", "OK");
+        createVar("MachineName", config.machineName());
+        createVar("MachineSerialNumber", config.serialNumber());
+        createVar("Plant", "Munich Precision Manufacturing");
+        createVar("ProductionLine", "5-Axis Machining Cell C");
+        orderNode = createVar("ProductionOrder", "PO-2024-AERO-0876");
+        articleNode = createVar("Article", "ART-TB-7075-T6");
+        quantityNode = createVar("OrderQuantity", quantity);
+        cuttingForceX = createVar("CuttingForceX", forceX);
+        cuttingForceY = createVar("CuttingForceY", forceY);
+        cuttingForceZ = createVar("CuttingForceZ", forceZ);
+        targetCoolantFlowNode = createVar("TargetCoolantFlow", coolantFlowTarget);
+        actualCoolantFlowNode = createVar("ActualCoolantFlow", coolantFlowActual);
+        targetCycleTimeNode = createVar("TargetCycleTime", cycleTimeTarget);
+        actualCycleTimeNode = createVar("ActualCycleTime", cycleTimeActual);
+        createVar("MachiningPhase", "Roughing");
+        goodPartsNode = createVar("GoodParts", goodParts);
+        badPartsNode = createVar("BadParts", badParts);
+        totalPartsNode = createVar("TotalParts", totalParts);
+
+        for (UaMethodNode m : type.methods()) {
+            machineNode.addReference(m, Identifiers.HasComponent, false);
+        }
+    }
+
+    private PlainVariable<?> createVar(String name, Object value) throws StatusException {
+        NodeId id = new NodeId(manager.getNamespaceIndex(), nodeName + "." + name);
+        PlainVariable<?> node = new PlainVariable<>(manager, id, type.browseName(name), type.displayName(name));
+
+        node.setDataTypeId(value instanceof String ? Identifiers.String : Identifiers.Double);
+        node.addReference(Identifiers.HasTypeDefinition, Identifiers.BaseDataVariableType, false);
+        node.setValue(new Variant(value));
+        manager.addNodeAndReference(machineNode, node, Identifiers.HasComponent);
+        return node;
+    }
+
+    public NodeId getNodeId() {
+        return nodeId;
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    public synchronized CncMachineState getState() {
+        return state;
+    }
+
+    /**
+     * Starting, then Running after {@value #SPIN_UP_MS} ms. Does nothing if already starting or
+     * running.
+     *
+     * @throws StatusException Bad_InvalidState if the machine cannot start from its current state
+     */
+    public synchronized void startMachine() throws StatusException {
+        if (state == CncMachineState.STARTING || state == CncMachineState.RUNNING) return;
+        moveTo(CncMachineState.STARTING);
+        moveLater(CncMachineState.RUNNING, SPIN_UP_MS);
+    }
+
+    /**
+     * Stopping, then Stopped after {@value #SPIN_DOWN_MS} ms. Does nothing if already stopping or
+     * stopped.
+     *
+     * @throws StatusException Bad_InvalidState if the machine cannot stop from its current state
+     */
+    public synchronized void stopMachine() throws StatusException {
+        if (state == CncMachineState.STOPPING || state == CncMachineState.STOPPED) return;
+        moveTo(CncMachineState.STOPPING);
+        moveLater(CncMachineState.STOPPED, SPIN_DOWN_MS);
+    }
+
+    /**
+     * @throws StatusException Bad_InvalidState unless the machine is stopped, homed or in error
+     */
+    public synchronized void enterMaintenanceMode() throws StatusException {
+        if (state == CncMachineState.MAINTENANCE) return;
+        moveTo(CncMachineState.MAINTENANCE);
+    }
+
+    /**
+     * Homed; the axes are zeroed by {@link #zeroAxes()} on the simulation thread.
+     *
+     * @throws StatusException Bad_InvalidState unless the machine is stopped, homed or in maintenance
+     */
+    public synchronized void homeAxes() throws StatusException {
+        moveTo(CncMachineState.HOMED);
+    }
+
+    /**
+     * Error, on an alarm while the spindle turns; cancels a pending transition.
+     */
+    private synchronized void fault() {
+        if (state.canMoveTo(CncMachineState.ERROR)) setState(CncMachineState.ERROR);
+    }
+
+    private void moveTo(CncMachineState next) throws StatusException {
+        if (!state.canMoveTo(next)) {
+            System.err.println("⚠️ " + nodeName + ": cannot go from " + state + " to " + next);
+            throw new StatusException(StatusCodes.Bad_InvalidState);
+        }
+        setState(next);
+    }
+
+    /**
+     * Moves on to {@code next} after {@code delayMillis}, unless another transition happens first.
+     */
+    private void moveLater(CncMachineState next, long delayMillis) {
+        long expected = transitions;
+        pending = scheduler.schedule(() -> {
+            synchronized (this) {
+                // a transition that could not cancel this task in time also changed the count
+                if (transitions == expected) setState(next);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void setState(CncMachineState next) {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        state = next;
+        transitions++;
+        try {
+            statusNode.setValue(new Variant(next.toString()));
+        } catch (StatusException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * On the simulation thread.
+     */
+    void resetCounters() {
+        goodParts = 0.0;
+        badParts = 0.0;
+        totalParts = 0.0;
+        progress = 0.0;
+        System.out.println(nodeName + ": counters reset.");
+    }
+
+    /**
+     * On the simulation thread.
+     */
+    void toolChange(int toolNumber) {
+        System.out.println(nodeName + ": tool change initiated to Tool" + toolNumber);
+        toolLife = 100.0;
+    }
+
+    public void loadCncProgram(String name) {
+        System.out.println(nodeName + ": CNC program '" + name + "' loaded successfully.");
+    }
+
+    /**
+     * On the simulation thread.
+     */
+    void zeroAxes() {
+        x = 0.0;
+        y = 0.0;
+        z = 0.0;
+    }
+
+    /**
+     * On the simulation thread.
+     */
+    void loadProductionOrder(String order, String article, double quantity) {
+        try {
+            orderNode.setValue(new Variant(order));
+            articleNode.setValue(new Variant(article));
+            this.quantity = quantity;
+            progress = 0.0;
+        } catch (StatusException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * One simulation step of {@code dt} seconds; only primitive arithmetic, no allocation.
+     */
+    void step(SplittableRandom random, double dt) {
+        spindleActual = spindleTarget * (1.0 + (random.nextDouble() - 0.5) * 0.04);
+        feedActual = feedTarget * (1.0 + (random.nextDouble() - 0.5) * 0.03);
+        sfActual = sfTarget + (random.nextDouble() - 0.5) * 0.02;
+
+        // Cutting forces pulse with the tooth passing frequency and scale with the feed
+        toothPhase += TWO_PI * spindleActual / 60.0 * CUTTER_TEETH * dt;
+        if (toothPhase >= TWO_PI) toothPhase %= TWO_PI;
+        double load = (feedTarget > 0 ? feedActual / feedTarget : 0.0) * (1.0 + 0.15 * Math.sin(toothPhase));
+        forceX = 245.7 * load * (1.0 + (random.nextDouble() - 0.5) * 0.05);
+        forceY = 189.3 * load * (1.0 + (random.nextDouble() - 0.5) * 0.05);
+        forceZ = 567.8 * load * (1.0 + (random.nextDouble() - 0.5) * 0.05);
+    }
+
+    /**
+     * Pushes the simulation state to the variable nodes.
+     */
+    void publish() {
+        try {
+            spindleTargetNode.setValue(new Variant(spindleTarget));
+            spindleActualNode.setValue(new Variant(spindleActual));
+            feedTargetNode.setValue(new Variant(feedTarget));
+            feedActualNode.setValue(new Variant(feedActual));
+            toolLifeNode.setValue(new Variant(toolLife));
+            coolantTempNode.setValue(new Variant(coolantTemp));
+            xNode.setValue(new Variant(x));
+            yNode.setValue(new Variant(y));
+            zNode.setValue(new Variant(z));
+            surfaceTarget.setValue(new Variant(sfTarget));
+            surfaceActual.setValue(new Variant(sfActual));
+            productionProgressNode.setValue(new Variant(progress));
+            quantityNode.setValue(new Variant(quantity));
+            cuttingForceX.setValue(new Variant(forceX));
+            cuttingForceY.setValue(new Variant(forceY));
+            cuttingForceZ.setValue(new Variant(forceZ));
+            targetCoolantFlowNode.setValue(new Variant(coolantFlowTarget));
+            actualCoolantFlowNode.setValue(new Variant(coolantFlowActual));
+            targetCycleTimeNode.setValue(new Variant(cycleTimeTarget));
+            actualCycleTimeNode.setValue(new Variant(cycleTimeActual));
+            goodPartsNode.setValue(new Variant(goodParts));
+            badPartsNode.setValue(new Variant(badParts));
+            totalPartsNode.setValue(new Variant(totalParts));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The once-a-second part of the simulation: tool wear and alarm checks, on the simulation thread.
+     */
+    void cycle() {
+        toolLife = Math.max(toolLife - 0.2, 0);
+
+        signals[AlarmSignal.SPINDLE_SPEED_DEVIATION.ordinal()] =
+                Math.abs(spindleActual - spindleTarget) / spindleTarget;
+        signals[AlarmSignal.ACTUAL_SPINDLE_SPEED.ordinal()] = spindleActual;
+        signals[AlarmSignal.ACTUAL_FEED_RATE.ordinal()] = feedActual;
+        signals[AlarmSignal.TOOL_LIFE_REMAINING.ordinal()] = toolLife;
+        signals[AlarmSignal.CUTTING_FORCE.ordinal()] = Math.sqrt(forceX * forceX + forceY * forceY + forceZ * forceZ);
+        signals[AlarmSignal.SURFACE_FINISH_DEVIATION.ordinal()] = Math.abs(sfActual - sfTarget);
+        signals[AlarmSignal.COOLANT_TEMPERATURE.ordinal()] = coolantTemp;
+        signals[AlarmSignal.ACTUAL_COOLANT_FLOW.ordinal()] = coolantFlowActual;
+
+        cycleMillis = System.currentTimeMillis();
+        if (alarms.evaluate(signals, cycleMillis) > 0) showAlarm();
+        for (CncAlarmCondition c : conditions) c.tick(cycleMillis);
+        // also after a restart with an alarm that is still active
+        if (alarms.activeCount() > 0) fault();
+    }
+
+    private void onAlarmChange(int rule, boolean active, double value) {
+        AlarmRule r = alarms.rule(rule);
+        if (active) {
+            alarmMessages[rule] = r.message() + " (" + r.signal().signalName() + "=" + value + ")";
+            System.out.println("Alarm on " + nodeName + ": " + alarmMessages[rule]);
+        } else {
+            alarmMessages[rule] = null;
+            System.out.println("Alarm cleared on " + nodeName + ": " + r.message());
+        }
+        conditions[rule].update(active, alarmMessages[rule], cycleMillis);
+    }
+
+    /**
+     * Shows the message of the first active rule, or "OK", in {@code AlarmMessage} if it changed.
+     */
+    private void showAlarm() {
+        int first = alarms.firstActive();
+        String message = first < 0 ? "OK" : alarmMessages[first];
+        if (message.equals(alarmMessage)) return;
+        alarmMessage = message;
+        try {
+            alarmNode.setValue(new Variant(message));
+        } catch (StatusException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.prosysopc.ua.samples.server;
+
+/**
+ * The states of a {@link CncMachine}, as shown in its {@code MachineStatus} variable, and the
+ * transitions between them.
+ *
+ * <pre>
+ * Stopped ─StartMachine→ Starting ─2 s→ Running ─StopMachine→ Stopping ─2 s→ Stopped
+ * Starting ⇄ Stopping          a command during a transition cancels it
+ * Stopped, Homed, Maintenance ─StartMachine→ Starting
+ * Stopped, Homed, Error ─EnterMaintenanceMode→ Maintenance
+ * Stopped, Homed, Maintenance ─HomeAxes→ Homed
+ * Starting, Running, Stopping ─alarm→ Error ─StopMachine→ Stopping
+ * </pre>
+ */
+public enum CncMachineState {
+    STOPPED("Stopped"),
+    STARTING("Starting"),
+    RUNNING("Running"),
+    STOPPING("Stopping"),
+    MAINTENANCE("Maintenance"),
+    HOMED("Homed"),
+    ERROR("Error");
+
+    private final String displayName;
+
+    CncMachineState(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public boolean canMoveTo(CncMachineState next) {
+        return switch (next) {
+            case STARTING -> this == STOPPED || this == STOPPING || this == HOMED || this == MAINTENANCE;
+            case RUNNING -> this == STARTING;
+            case STOPPING -> this == STARTING || this == RUNNING || this == HOMED || this == MAINTENANCE
+                    || this == ERROR;
+            case STOPPED -> this == STOPPING;
+            case MAINTENANCE -> this == STOPPED || this == HOMED || this == ERROR;
+            case HOMED -> this == STOPPED || this == HOMED || this == MAINTENANCE;
+            case ERROR -> this == STARTING || this == RUNNING || this == STOPPING;
+        };
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
@@ -0,0 +1,150 @@
+package com.prosysopc.ua.samples.server;
+
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.ValueRanks;
+import com.prosysopc.ua.server.NodeManagerUaNode;
+import com.prosysopc.ua.server.nodes.*;
+import com.prosysopc.ua.stack.builtintypes.*;
+import com.prosysopc.ua.stack.core.Argument;
+import com.prosysopc.ua.stack.core.Identifiers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@code CncMachineType} ObjectType, a subtype of {@code BaseObjectType} that declares the
+ * variables and methods of a CNC machining center once.
+ *
+ * <p>
+ * The variables are declared as mandatory instance declarations with their description; every
+ * {@link CncMachine} has its own variable nodes, which reuse the browse and display names of the
+ * declarations and carry no description of their own. The methods exist only on the type: machines
+ * reference the same method nodes, and {@link CncNodeManager} tells them apart by the object of the
+ * call. The method NodeIds ({@code StartMachine}, ...) are the ones of the former single machine.
+ */
+public class CncMachineType {
+
+    static final String[] TEXT_VARIABLES = {
+            "MachineStatus", "AlarmMessage", "MachineName", "MachineSerialNumber", "Plant", "ProductionLine",
+            "ProductionOrder", "Article", "MachiningPhase"
+    };
+    static final String[] NUMERIC_VARIABLES = {
+            "TargetSpindleSpeed", "ActualSpindleSpeed", "TargetFeedRate", "ActualFeedRate", "ToolLifeRemaining",
+            "CoolantTemperature", "X", "Y", "Z", "TargetSurfaceFinish", "ActualSurfaceFinish",
+            "ProductionOrderProgress", "OrderQuantity", "CuttingForceX", "CuttingForceY", "CuttingForceZ",
+            "TargetCoolantFlow", "ActualCoolantFlow", "TargetCycleTime", "ActualCycleTime", "GoodParts",
+            "BadParts", "TotalParts"
+    };
+
+    private final NodeManagerUaNode manager;
+    private final int ns;
+    private final UaObjectTypeNode typeNode;
+    private final Map<String, QualifiedName> browseNames = new HashMap<>();
+    private final Map<String, LocalizedText> displayNames = new HashMap<>();
+    private final Map<NodeId, String> methodNames = new HashMap<>();
+    private final Map<String, UaMethodNode> methods = new HashMap<>();
+
+    public CncMachineType(NodeManagerUaNode manager) throws StatusException {
+        this.manager = manager;
+        this.ns = manager.getNamespaceIndex();
+
+        typeNode = new UaObjectTypeNode(manager, new NodeId(ns, "CncMachineType"),
+                new QualifiedName(ns, "CncMachineType"), LocalizedText.english("CncMachineType"));
+        typeNode.setDescription(LocalizedText.english("CNC machining center"));
+        manager.addNodeAndReference(manager.getServer().getNodeManagerRoot().getType(Identifiers.BaseObjectType),
+                typeNode, Identifiers.HasSubtype);
+
+        for (String name : TEXT_VARIABLES) declareVariable(name, Identifiers.String);
+        for (String name : NUMERIC_VARIABLES) declareVariable(name, Identifiers.Double);
+
+        declareMethod("StartMachine");
+        declareMethod("StopMachine");
+        declareMethod("EnterMaintenanceMode");
+        declareMethod("ResetCounters");
+        declareMethod("HomeAxes");
+        declareMethod("ToolChange",
+                new Argument("ToolNumber", Identifiers.Int32, ValueRanks.Scalar, null,
+                        LocalizedText.english("Tool number to switch to")));
+        declareMethod("LoadCncProgram",
+                new Argument("ProgramName", Identifiers.String, ValueRanks.Scalar, null,
+                        LocalizedText.english("Program name")));
+        declareMethod("LoadProductionOrder",
+                new Argument("Order",    Identifiers.String, ValueRanks.Scalar, null, LocalizedText.english("Order number")),
+                new Argument("Article",  Identifiers.String, ValueRanks.Scalar, null, LocalizedText.english("Article")),
+                new Argument("Quantity", Identifiers.Double, ValueRanks.Scalar, null, LocalizedText.english("Target quantity")));
+    }
+
+    private void declareVariable(String name, NodeId dataType) throws StatusException {
+        QualifiedName qn = new QualifiedName(ns, name);
+        LocalizedText ln = LocalizedText.english(name);
+        browseNames.put(name, qn);
+        displayNames.put(name, ln);
+
+        PlainVariable<?> node = new PlainVariable<>(manager, new NodeId(ns, "CncMachineType." + name), qn, ln);
+        node.setDataTypeId(dataType);
+        node.setValueRank(ValueRanks.Scalar);
+        node.addReference(Identifiers.HasTypeDefinition, Identifiers.BaseDataVariableType, false);
+        node.addReference(Identifiers.ModellingRule_Mandatory, Identifiers.HasModellingRule, false);
+        node.setDescription(LocalizedText.english("Variable " + name));
+        manager.addNodeAndReference(typeNode, node, Identifiers.HasComponent);
+    }
+
+    private void declareMethod(String name, Argument... inputArguments) throws StatusException {
+        NodeId id = new NodeId(ns, name);
+        UaMethodNode m = new UaMethodNode(manager, id,
+                new QualifiedName(ns, name), LocalizedText.english(name));
+        m.setExecutable(true);
+        m.setUserExecutable(true);
+        m.addReference(Identifiers.ModellingRule_Mandatory, Identifiers.HasModellingRule, false);
+        manager.addNodeAndReference(typeNode, m, Identifiers.HasComponent);
+        if (inputArguments.length > 0) addInputArgumentsProperty(m, name, inputArguments);
+        methodNames.put(id, name);
+        methods.put(name, m);
+    }
+
+    private void addInputArgumentsProperty(UaMethodNode methodNode, String name, Argument[] args)
+            throws StatusException {
+        PlainProperty inputProp = new PlainProperty(
+                manager,
+                new NodeId(ns, name + "_InputArguments"),
+                new QualifiedName(ns, "InputArguments"),
+                LocalizedText.english("InputArguments"));
+
+        inputProp.setDataTypeId(Identifiers.Argument);
+        inputProp.setValueRank(ValueRanks.OneDimension);
+        inputProp.addReference(Identifiers.HasTypeDefinition, Identifiers.PropertyType, false);
+        inputProp.setValue(new Variant(args));
+
+        manager.addNodeAndReference(methodNode, inputProp, Identifiers.HasProperty);
+    }
+
+    public NodeId getNodeId() {
+        return typeNode.getNodeId();
+    }
+
+    /**
+     * Shared browse name of a declared variable.
+     *
+     * @throws IllegalArgumentException if the type does not declare the variable
+     */
+    QualifiedName browseName(String variable) {
+        QualifiedName qn = browseNames.get(variable);
+        if (qn == null) throw new IllegalArgumentException("CncMachineType has no variable " + variable);
+        return qn;
+    }
+
+    LocalizedText displayName(String variable) {
+        return displayNames.get(variable);
+    }
+
+    Iterable<UaMethodNode> methods() {
+        return methods.values();
+    }
+
+    /**
+     * @return the name of the method with the given NodeId, or null if it is not one of the type
+     */
+    String methodName(NodeId methodId) {
+        return methodNames.get(methodId);
+    }
+}
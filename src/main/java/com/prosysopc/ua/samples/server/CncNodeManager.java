@@ -1,45 +1,76 @@
 package com.prosysopc.ua.samples.server;
 
 import com.prosysopc.ua.StatusException;
-import com.prosysopc.ua.ValueRanks;
+import com.prosysopc.ua.UaBrowseNamePath;
+import com.prosysopc.ua.UaQualifiedName;
 import com.prosysopc.ua.nodes.UaMethod;
 import com.prosysopc.ua.nodes.UaNode;
 import com.prosysopc.ua.server.*;
-import com.prosysopc.ua.server.nodes.*;
+import com.prosysopc.ua.server.instantiation.TypeDefinitionBasedNodeBuilderConfiguration;
 import com.prosysopc.ua.stack.builtintypes.*;
-import com.prosysopc.ua.stack.core.Argument;
-import com.prosysopc.ua.stack.core.Identifiers;
 import com.prosysopc.ua.stack.builtintypes.StatusCode;
 import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.types.opcua.Ids;
 
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CNC machining centers: the {@link CncMachineType}, its instances under {@code Objects}, and
+ * the simulation of their values.
+ *
+ * <p>
+ * The machines are configured with {@code CNC_MACHINES}, a list of {@code Node[:Name[:Serial]]}
+ * entries, or else with {@code CNC_MACHINE_COUNT} (default 1). The first of a counted set is the
+ * former single machine, {@code CncMachine} named {@code CNC-01}. More can be added with
+ * {@link #addMachines(List)}. One call listener serves the methods of all machines; it finds the
+ * machine by the object of the call. The simulation executor is also the scheduler of the machines'
+ * state transitions.
+ *
+ * <p>
+ * The machine state lives in primitive fields that are only changed on the simulation thread. It is
+ * stepped {@code SIM_RATE_HZ} times per second (1000 by default, up to 10 kHz) without allocating,
+ * and pushed to the variable nodes {@code SIM_PUBLISH_HZ} times per second (default 1). Tool wear
+ * and the alarm checks run once per {@link #simulateCycle()}, which the {@link SampleConsoleServer}
+ * calls every second. Method calls change the state on the simulation thread as well and publish
+ * right away.
+ *
+ * <p>
+ * The machines are event notifiers of {@code Objects}; their alarms are {@code AlarmConditionType}
+ * instances ({@link CncAlarmCondition}), acknowledged and shelved through the
+ * {@link CncEventManagerListener}, with the events of all machines limited by one
+ * {@link AlarmEventLimiter}.
+ */
 public class CncNodeManager extends NodeManagerUaNode {
 
-    private UaObjectNode machineNode;
-    private UaVariableNode statusNode;
-    private UaVariableNode spindleTargetNode;
-    private UaVariableNode spindleActualNode;
-    private UaVariableNode feedTargetNode;
-    private UaVariableNode feedActualNode;
-    private UaVariableNode toolLifeNode;
-    private UaVariableNode coolantTempNode;
-    private UaVariableNode xNode, yNode, zNode;
-    private UaVariableNode productionProgressNode;
-    private UaVariableNode alarmNode;
-
-    private UaVariableNode machineNameNode, serialNode;
-    private UaVariableNode plantNode, lineNode;
-    private UaVariableNode orderNode, articleNode, quantityNode;
-    private UaVariableNode cuttingForceX, cuttingForceY, cuttingForceZ;
-    private UaVariableNode surfaceTarget, surfaceActual;
-    private UaVariableNode goodPartsNode, badPartsNode, totalPartsNode;
-    private UaVariableNode targetCoolantFlowNode, actualCoolantFlowNode;
-    private UaVariableNode targetCycleTimeNode, actualCycleTimeNode;
-    private UaVariableNode machiningPhaseNode;
-
-    private final Random random = new Random();
-    private final LinkedList<Double> lastDeviations = new LinkedList<>();
+    private CncMachineType machineType;
+    // Replaced on every addMachines, so the simulation thread iterates without locking or allocating
+    private volatile CncMachine[] machines = new CncMachine[0];
+    private final Map<NodeId, CncMachine> machinesById = new ConcurrentHashMap<>();
+    private final Map<NodeId, CncAlarmCondition> alarmConditions = new ConcurrentHashMap<>();
+    // Only used on the simulation thread
+    private final AlarmEventLimiter alarmEvents = AlarmEventLimiter.fromEnv();
+    private final long alarmDedupMillis =
+            Long.parseLong(System.getenv().getOrDefault("ALARM_DEDUP_MS", "10000"));
+
+    // Only used on the simulation thread
+    private final SplittableRandom random = new SplittableRandom();
+
+    private final ScheduledExecutorService simulation = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cnc-simulation");
+        t.setDaemon(true);
+        return t;
+    });
+    private final int simRateHz =
+            Math.max(1, Integer.parseInt(System.getenv().getOrDefault("SIM_RATE_HZ", "1000")));
+    private final double publishRateHz =
+            Double.parseDouble(System.getenv().getOrDefault("SIM_PUBLISH_HZ", "1"));
+    private final double dt = 1.0 / simRateHz;
+    private long simStartNanos;
+    private long steps;
 
     public CncNodeManager(UaServer server, String namespaceUri) {
         super(server, namespaceUri);
@@ -48,93 +79,98 @@ public class CncNodeManager extends NodeManagerUaNode {
     @Override
     protected void init() throws StatusException {
         super.init();
-        createCncMachine();
-        createMethodNodes();
-    }
-
-    private void createCncMachine() throws StatusException {
-        int ns = getNamespaceIndex();
-
-        machineNode = new UaObjectNode(this, new NodeId(ns, "CncMachine"),
-                new QualifiedName(ns, "CncMachine"), LocalizedText.english("CNC Machining Center"));
-        addNodeAndReference(getServer().getNodeManagerRoot().getObjectsFolder(), machineNode, Identifiers.Organizes);
 
-        statusNode = createVar("MachineStatus", "Running");
-        spindleTargetNode = createVar("TargetSpindleSpeed", 8500.0);
-        spindleActualNode = createVar("ActualSpindleSpeed", 8487.0);
-        feedTargetNode = createVar("TargetFeedRate", 1200.0);
-        feedActualNode = createVar("ActualFeedRate", 1198.0);
-        toolLifeNode = createVar("ToolLifeRemaining", 73.2);
-        coolantTempNode = createVar("CoolantTemperature", 22.5);
-        xNode = createVar("X", 125.847);
-        yNode = createVar("Y", 89.234);
-        zNode = createVar("Z", -45.678);
-        surfaceTarget = createVar("TargetSurfaceFinish", 0.8);
-        surfaceActual = createVar("ActualSurfaceFinish", 0.75);
-        productionProgressNode = createVar("ProductionOrderProgress", 57.5);
-        alarmNode = createVar("AlarmMessage", "OK");
-        machineNameNode = createVar("MachineName", "CNC-01");
-        serialNode = createVar("MachineSerialNumber", "VMC850-2023-003");
-        plantNode = createVar("Plant", "Munich Precision Manufacturing");
-        lineNode = createVar("ProductionLine", "5-Axis Machining Cell C");
-        orderNode = createVar("ProductionOrder", "PO-2024-AERO-0876");
-        articleNode = createVar("Article", "ART-TB-7075-T6");
-        quantityNode = createVar("OrderQuantity", 120.0);
-        cuttingForceX = createVar("CuttingForceX", 245.7);
-        cuttingForceY = createVar("CuttingForceY", 189.3);
-        cuttingForceZ = createVar("CuttingForceZ", 567.8);
-        targetCoolantFlowNode = createVar("TargetCoolantFlow", 25.0);
-        actualCoolantFlowNode = createVar("ActualCoolantFlow", 24.8);
-        targetCycleTimeNode = createVar("TargetCycleTime", 75.0);
-        actualCycleTimeNode = createVar("ActualCycleTime", 73.2);
-        machiningPhaseNode = createVar("MachiningPhase", "Roughing");
-        goodPartsNode = createVar("GoodParts", 2847.0);
-        badPartsNode = createVar("BadParts", 23.0);
-        totalPartsNode = createVar("TotalParts", 2870.0);
+        // The alarm conditions of the machines can be shelved
+        TypeDefinitionBasedNodeBuilderConfiguration.Builder conf =
+                TypeDefinitionBasedNodeBuilderConfiguration.builder();
+        conf.addOptional(UaBrowseNamePath.from(Ids.AlarmConditionType, UaQualifiedName.standard("ShelvingState")));
+        setNodeBuilderConfiguration(conf.build());
+        getEventManager().setListener(new CncEventManagerListener(alarmConditions));
 
+        machineType = new CncMachineType(this);
+        createMethodDispatch();
+        addMachines(machineConfigsFromEnv());
     }
 
+    /**
+     * Machines configured by {@code CNC_MACHINES} or {@code CNC_MACHINE_COUNT}.
+     */
+    static List<CncMachine.Config> machineConfigsFromEnv() {
+        List<CncMachine.Config> configs = new ArrayList<>();
+        String list = System.getenv().getOrDefault("CNC_MACHINES", "");
+        if (!list.isBlank()) {
+            for (String entry : list.split(",")) {
+                if (entry.isBlank()) continue;
+                String[] parts = entry.trim().split(":");
+                String node = parts[0];
+                String name = parts.length > 1 ? parts[1] : node;
+                String serial = parts.length > 2 ? parts[2] : "VMC850-" + node;
+                configs.add(new CncMachine.Config(node, name, serial));
+            }
+            return configs;
+        }
+        int count = Integer.parseInt(System.getenv().getOrDefault("CNC_MACHINE_COUNT", "1"));
+        for (int i = 1; i <= count; i++) {
+            // numbered on from the serial of the first machine
+            configs.add(new CncMachine.Config(i == 1 ? "CncMachine" : "CncMachine-" + i,
+                    String.format("CNC-%02d", i), String.format("VMC850-2023-%03d", i + 2)));
+        }
+        return configs;
+    }
 
-    private void createMethodNodes() throws StatusException {
-        final int ns = getNamespaceIndex();
+    /**
+     * Creates a {@link CncMachineType} instance per config and adds it to the simulation.
+     *
+     * @throws StatusException if a node cannot be added, e.g. because the node name is taken
+     */
+    public synchronized List<CncMachine> addMachines(List<CncMachine.Config> configs) throws StatusException {
+        Runtime rt = Runtime.getRuntime();
+        long heapBefore = rt.totalMemory() - rt.freeMemory();
+        long start = System.nanoTime();
+
+        List<CncMachine> added = new ArrayList<>(configs.size());
+        for (CncMachine.Config config : configs) {
+            CncMachine m = new CncMachine(this, machineType, config, simulation);
+            machinesById.put(m.getNodeId(), m);
+            added.add(m);
+        }
+        CncMachine[] all = Arrays.copyOf(machines, machines.length + added.size());
+        for (int i = 0; i < added.size(); i++) all[machines.length + i] = added.get(i);
+        machines = all;
+
+        if (!added.isEmpty()) {
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            // approximate: a collection during the loop makes it too low
+            long heapPerMachine = Math.max(0, rt.totalMemory() - rt.freeMemory() - heapBefore) / added.size();
+            System.out.println("Created " + added.size() + " CNC machines in " + millis + " ms, ~"
+                    + (heapPerMachine >> 10) + " KB heap each (" + all.length + " in total)");
+        }
+        return added;
+    }
 
-        java.util.function.Function<String, UaMethodNode> mkMethod = name -> {
-            UaMethodNode m = new UaMethodNode(this, new NodeId(ns, name),
-                    new QualifiedName(ns, name), LocalizedText.english(name));
-            m.setExecutable(true);
-            m.setUserExecutable(true);
-            try {
-                addNodeAndReference(machineNode, m, Identifiers.HasComponent);
-            } catch (StatusException e) {
-                throw new RuntimeException(e);
-            }
-            return m;
-        };
+    public List<CncMachine> getMachines() {
+        return List.of(machines);
+    }
 
-        UaMethodNode startMethod       = mkMethod.apply("StartMachine");
-        UaMethodNode stopMethod        = mkMethod.apply("StopMachine");
-        UaMethodNode maintenanceMethod = mkMethod.apply("EnterMaintenanceMode");
-        UaMethodNode resetMethod       = mkMethod.apply("ResetCounters");
-        UaMethodNode homeAxesMethod    = mkMethod.apply("HomeAxes");
-        UaMethodNode toolChangeMethod  = mkMethod.apply("ToolChange");
-        addInputArgumentsProperty(toolChangeMethod, new Argument[]{
-                new Argument("ToolNumber", Identifiers.Int32, ValueRanks.Scalar, null,
-                        LocalizedText.english("Tool number to switch to"))
-        });
+    AlarmEventLimiter alarmEvents() {
+        return alarmEvents;
+    }
 
-        UaMethodNode loadProgramMethod = mkMethod.apply("LoadCncProgram");
-        addInputArgumentsProperty(loadProgramMethod, new Argument[]{
-                new Argument("ProgramName", Identifiers.String, ValueRanks.Scalar, null,
-                        LocalizedText.english("Program name"))
-        });
+    /**
+     * The alarm conditions created so far, by NodeId.
+     */
+    Map<NodeId, CncAlarmCondition> alarmConditions() {
+        return alarmConditions;
+    }
 
-        UaMethodNode loadOrderMethod   = mkMethod.apply("LoadProductionOrder");
-        addInputArgumentsProperty(loadOrderMethod, new Argument[]{
-                new Argument("Order",    Identifiers.String, ValueRanks.Scalar, null, LocalizedText.english("Order number")),
-                new Argument("Article",  Identifiers.String, ValueRanks.Scalar, null, LocalizedText.english("Article")),
-                new Argument("Quantity", Identifiers.Double, ValueRanks.Scalar, null, LocalizedText.english("Target quantity"))
-        });
+    long alarmDedupMillis() {
+        return alarmDedupMillis;
+    }
 
+    /**
+     * Registers the one call listener for the methods of {@link CncMachineType}, for all machines.
+     */
+    private void createMethodDispatch() {
         MethodManagerUaNode methodManager = new MethodManagerUaNode(this);
         methodManager.addCallListener(new CallableListener() {
             @Override
@@ -147,250 +183,125 @@ public class CncNodeManager extends NodeManagerUaNode {
                                   StatusCode[] inputArgResults,
                                   DiagnosticInfo[] inputArgDiag,
                                   Variant[] outputArguments) throws StatusException {
+                CncMachine machine = machinesById.get(objectId);
+                String name = machineType.methodName(methodId);
+                if (machine == null || name == null) return false;
                 try {
-                    if (methodId.equals(startMethod.getNodeId())) {
-                        CncNodeManager.this.startMachine();
-                    } else if (methodId.equals(stopMethod.getNodeId())) {
-                        CncNodeManager.this.stopMachine();
-                    } else if (methodId.equals(maintenanceMethod.getNodeId())) {
-                        CncNodeManager.this.enterMaintenanceMode();
-                    } else if (methodId.equals(resetMethod.getNodeId())) {
-                        CncNodeManager.this.resetCounters();
-                    } else if (methodId.equals(homeAxesMethod.getNodeId())) {
-                        CncNodeManager.this.homeAxes();
-                    } else if (methodId.equals(toolChangeMethod.getNodeId())) {
-                        int toolNum = 1;
-                        if (inputArguments != null && inputArguments.length > 0) {
-                            Object v = inputArguments[0].getValue();
-                            if (v instanceof Number) toolNum = ((Number) v).intValue();
-                            else if (v instanceof String) toolNum = Integer.parseInt((String) v);
+                    switch (name) {
+                        case "StartMachine" -> machine.startMachine();
+                        case "StopMachine" -> machine.stopMachine();
+                        case "EnterMaintenanceMode" -> machine.enterMaintenanceMode();
+                        case "ResetCounters" -> update(machine, machine::resetCounters);
+                        case "HomeAxes" -> {
+                            machine.homeAxes();
+                            update(machine, machine::zeroAxes);
+                        }
+                        case "ToolChange" -> {
+                            int toolNum = 1;
+                            if (inputArguments != null && inputArguments.length > 0) {
+                                Object v = inputArguments[0].getValue();
+                                if (v instanceof Number) toolNum = ((Number) v).intValue();
+                                else if (v instanceof String) toolNum = Integer.parseInt((String) v);
+                            }
+                            int tool = toolNum;
+                            update(machine, () -> machine.toolChange(tool));
+                        }
+                        case "LoadCncProgram" -> {
+                            String prog = "DefaultProgram";
+                            if (inputArguments != null && inputArguments.length > 0 &&
+                                    inputArguments[0].getValue() != null)
+                                prog = String.valueOf(inputArguments[0].getValue());
+                            machine.loadCncProgram(prog);
                         }
-                        CncNodeManager.this.toolChange(toolNum);
-                    } else if (methodId.equals(loadProgramMethod.getNodeId())) {
-                        String prog = "DefaultProgram";
-                        if (inputArguments != null && inputArguments.length > 0 &&
-                                inputArguments[0].getValue() != null)
-                            prog = String.valueOf(inputArguments[0].getValue());
-                        CncNodeManager.this.loadCncProgram(prog);
-                    } else if (methodId.equals(loadOrderMethod.getNodeId())) {
-                        String order = "", article = "";
-                        double qty = 0.0;
-                        if (inputArguments != null) {
-                            if (inputArguments.length > 0 && inputArguments[0].getValue() != null)
-                                order = String.valueOf(inputArguments[0].getValue());
-                            if (inputArguments.length > 1 && inputArguments[1].getValue() != null)
-                                article = String.valueOf(inputArguments[1].getValue());
-                            if (inputArguments.length > 2 && inputArguments[2].getValue() != null) {
-                                Object v = inputArguments[2].getValue();
-                                if (v instanceof Number) qty = ((Number) v).doubleValue();
-                                else if (v instanceof String) qty = Double.parseDouble((String) v);
+                        case "LoadProductionOrder" -> {
+                            String order = "", article = "";
+                            double qty = 0.0;
+                            if (inputArguments != null) {
+                                if (inputArguments.length > 0 && inputArguments[0].getValue() != null)
+                                    order = String.valueOf(inputArguments[0].getValue());
+                                if (inputArguments.length > 1 && inputArguments[1].getValue() != null)
+                                    article = String.valueOf(inputArguments[1].getValue());
+                                if (inputArguments.length > 2 && inputArguments[2].getValue() != null) {
+                                    Object v = inputArguments[2].getValue();
+                                    if (v instanceof Number) qty = ((Number) v).doubleValue();
+                                    else if (v instanceof String) qty = Double.parseDouble((String) v);
+                                }
                             }
+                            String o = order, a = article;
+                            double q = qty;
+                            update(machine, () -> machine.loadProductionOrder(o, a, q));
+                        }
+                        default -> {
+                            return false;
                         }
-                        CncNodeManager.this.loadProductionOrder(order, article, qty);
-                    } else {
-                        return false;
                     }
-
                     return true;
+                } catch (StatusException e) {
+                    throw e;
                 } catch (Exception e) {
                     e.printStackTrace();
                     return false;
                 }
             }
         });
-
-
-
-    }
-
-    private void addInputArgumentsProperty(UaMethodNode methodNode, Argument[] args) throws StatusException {
-        final int ns = getNamespaceIndex();
-
-        PlainProperty inputProp = new PlainProperty(
-                this,
-                new NodeId(ns, methodNode.getBrowseName().getName() + "_InputArguments"),
-                new QualifiedName(ns, "InputArguments"),
-                LocalizedText.english("InputArguments"));
-
-        inputProp.setDataTypeId(Identifiers.Argument);
-        inputProp.setValueRank(ValueRanks.OneDimension);
-        inputProp.addReference(Identifiers.HasTypeDefinition, Identifiers.PropertyType, false);
-        inputProp.setValue(new Variant(args));
-
-        addNodeAndReference(methodNode, inputProp, Identifiers.HasProperty);
     }
 
-
-
-
-
-    private PlainVariable<?> createVar(String name, Object value) throws StatusException {
-        NodeId id = new NodeId(getNamespaceIndex(), name);
-        QualifiedName qn = new QualifiedName(getNamespaceIndex(), name);
-        LocalizedText ln = LocalizedText.english(name);
-
-        PlainVariable<?> node = new PlainVariable<>(this, id, qn, ln);
-
-        node.setDataTypeId(getDataTypeId(value));
-        node.addReference(Identifiers.HasTypeDefinition, Identifiers.BaseDataVariableType, false);
-        node.setDescription(LocalizedText.english("Variable " + name));
-        node.setValue(new Variant(value));
-        addNodeAndReference(machineNode, node, Identifiers.HasComponent);
-        return node;
-    }
-
-
-    private void addVars(UaVariableNode... vars) throws StatusException {
-        for (UaVariableNode v : vars) {
-            addNodeAndReference(machineNode, v, Identifiers.HasComponent);
-        }
-    }
-
-
-    public void startMachine() {
-        setStatus("Starting");
-        new Timer().schedule(new TimerTask() {
-            public void run() { setStatus("Running"); }
-        }, 2000);
+    /**
+     * Starts stepping the simulation at {@code SIM_RATE_HZ} and publishing at {@code SIM_PUBLISH_HZ}.
+     */
+    public void startSimulation() {
+        long publishMicros = Math.max(1, Math.round(1_000_000 / publishRateHz));
+        simulation.execute(() -> simStartNanos = System.nanoTime());
+        simulation.scheduleAtFixedRate(this::advance, 1, 1, TimeUnit.MILLISECONDS);
+        simulation.scheduleAtFixedRate(this::publish, publishMicros, publishMicros, TimeUnit.MICROSECONDS);
+        System.out.println("CNC simulation of " + machines.length + " machines running at " + simRateHz
+                + " Hz, publishing at " + publishRateHz + " Hz");
     }
 
-    public void stopMachine() {
-        setStatus("Stopping");
-        new Timer().schedule(new TimerTask() {
-            public void run() { setStatus("Stopped"); }
-        }, 2000);
+    public void stopSimulation() {
+        simulation.shutdownNow();
     }
 
-    public void enterMaintenanceMode() {
-        setStatus("Maintenance");
-    }
-
-    public void resetCounters() {
+    /**
+     * Runs the steps that are due by the wall clock, machine by machine. A stalled thread catches up
+     * at most one second.
+     */
+    private void advance() {
+        long due = (long) ((System.nanoTime() - simStartNanos) * 1e-9 * simRateHz);
+        if (due - steps > simRateHz) steps = due - simRateHz;
+        long n = due - steps;
         try {
-            goodPartsNode.setValue(new Variant(0.0));
-            badPartsNode.setValue(new Variant(0.0));
-            totalPartsNode.setValue(new Variant(0.0));
-            productionProgressNode.setValue(new Variant(0.0));
-            System.out.println("Counters reset.");
-        } catch (StatusException e) {
+            for (CncMachine m : machines) {
+                for (long i = 0; i < n; i++) m.step(random, dt);
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the periodic task
             e.printStackTrace();
         }
+        steps = due;
     }
 
-    public void toolChange(int toolNumber) throws StatusException {
-        System.out.println("Tool change initiated to Tool" + toolNumber);
-        toolLifeNode.setValue(new Variant(100.0));
-    }
-
-    public void loadCncProgram(String name) {
-        System.out.println("CNC program '" + name + "' loaded successfully.");
-    }
-
-    public void homeAxes() {
-        try {
-            xNode.setValue(new Variant(0.0));
-            yNode.setValue(new Variant(0.0));
-            zNode.setValue(new Variant(0.0));
-            setStatus("Homed");
-        } catch (StatusException e) {
-            e.printStackTrace();
-        }
+    private void publish() {
+        for (CncMachine m : machines) m.publish();
     }
 
-    public void loadProductionOrder(String order, String article, double quantity) {
-        try {
-            orderNode.setValue(new Variant(order));
-            articleNode.setValue(new Variant(article));
-            quantityNode.setValue(new Variant(quantity));
-            productionProgressNode.setValue(new Variant(0.0));
-            setStatus("Order Loaded");
-        } catch (StatusException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Changes the state of a machine on the simulation thread and publishes it.
+     */
+    private void update(CncMachine machine, Runnable change) {
+        simulation.execute(() -> {
+            change.run();
+            machine.publish();
+        });
     }
 
+    /**
+     * The once-a-second part of the simulation: tool wear and alarm checks, on the simulation thread.
+     */
     public void simulateCycle() {
-        try {
-            double target = (Double) spindleTargetNode.getValue().getValue().getValue();
-            double newActual = target * (1.0 + (random.nextDouble() - 0.5) * 0.04);
-            spindleActualNode.setValue(new Variant(newActual));
-
-            double feedT = (Double) feedTargetNode.getValue().getValue().getValue();
-            double newFeed = feedT * (1.0 + (random.nextDouble() - 0.5) * 0.03);
-            feedActualNode.setValue(new Variant(newFeed));
-
-            double toolLife = (Double) toolLifeNode.getValue().getValue().getValue();
-            toolLifeNode.setValue(new Variant(Math.max(toolLife - 0.2, 0)));
-            double sfTarget = (Double) surfaceTarget.getValue().getValue().getValue();
-            double sfActual = sfTarget + (random.nextDouble() - 0.5) * 0.02;
-            surfaceActual.setValue(new Variant(sfActual));
-
-            checkAlarms(target, newActual, toolLife, sfTarget, sfActual);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-    }
-
-    private void checkAlarms(double target, double actual, double toolLife,
-                             double surfTarget, double surfActual) {
-        try {
-            double deviation = Math.abs(actual - target) / target;
-            lastDeviations.add(deviation);
-            if (lastDeviations.size() > 3) lastDeviations.removeFirst();
-
-            boolean threeBad = lastDeviations.size() == 3 &&
-                    lastDeviations.stream().allMatch(d -> d > 0.05);
-
-            double fx = (Double) cuttingForceX.getValue().getValue().getValue();
-            double fy = (Double) cuttingForceY.getValue().getValue().getValue();
-            double fz = (Double) cuttingForceZ.getValue().getValue().getValue();
-            double totalForce = Math.sqrt(fx * fx + fy * fy + fz * fz);
-
-            if (deviation > 0.15)
-                alarm("SpindleSpeed >15% deviation (actual=" + actual + ")");
-            else if (threeBad)
-                alarm("SpindleSpeed >5% for 3 cycles");
-            else if (toolLife < 10)
-                alarm("Tool wear alarm: life <10%");
-            else if (totalForce > 1.5 * 600)
-                alarm("Tool breakage detected: cutting force " + totalForce + "N");
-            else if (Math.abs(surfActual - surfTarget) > 0.01)
-                alarm("Dimensional tolerance ±0.01mm exceeded (Δ=" + (surfActual - surfTarget) + ")");
-            else
-                alarmNode.setValue(new Variant("OK"));
-        } catch (StatusException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void alarm(String msg) {
-        System.out.println("Alarm: " + msg);
-        setStatus("Error");
-
-        try {
-            alarmNode.setValue(new Variant(msg));
-        } catch (StatusException e) {
-            e.printStackTrace();
-        }
-    }
-
-
-    private void setStatus(String s) {
-        try {
-            statusNode.setValue(new Variant(s));
-        } catch (StatusException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private NodeId getDataTypeId(Object value) {
-        if (value instanceof String) return Identifiers.String;
-        if (value instanceof Integer) return Identifiers.Int32;
-        if (value instanceof Double || value instanceof Float) return Identifiers.Double;
-        if (value instanceof Boolean) return Identifiers.Boolean;
-        return Identifiers.BaseDataType;
+        simulation.execute(() -> {
+            for (CncMachine m : machines) m.cycle();
+            alarmEvents.flush();
+        });
     }
-
-
 }
@@ -995,6 +995,10 @@ public class SampleConsoleServer {
    */
   protected void startSimulation() {
     simulator.scheduleAtFixedRate(simulationTask, 1000, 1000, TimeUnit.MILLISECONDS);
+    // The CNC machine steps at its own rate, SIM_RATE_HZ, on its own thread
+    if (cncNodeManager != null) {
+      cncNodeManager.startSimulation();
+    }
     logger.info("Simulation started.");
   }
 
@@ -1003,6 +1007,9 @@ public class SampleConsoleServer {
    */
   protected void stopSimulation() {
     simulator.shutdown();
+    if (cncNodeManager != null) {
+      cncNodeManager.stopSimulation();
+    }
     logger.info("Simulation stopped.");
   }
 }
\ No newline at end of file
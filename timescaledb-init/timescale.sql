@@ -2,7 +2,7 @@ CREATE EXTENSION IF NOT EXISTS timescaledb;
 CREATE TABLE IF NOT EXISTS cnc_machine (
                                            time TIMESTAMPTZ NOT NULL,
                                            machine TEXT NOT NULL,
-                                           status TEXT CHECK (status IN ('Running', 'Stopped', 'Error', 'Maintenance')),
+                                           status TEXT CHECK (status IN ('Stopped', 'Starting', 'Running', 'Stopping', 'Maintenance', 'Homed', 'Error')),
                                            spindle_speed DOUBLE PRECISION CHECK (spindle_speed >= 0),
                                            coolant_temp DOUBLE PRECISION CHECK (coolant_temp >= 0),
                                            tool_life DOUBLE PRECISION CHECK (tool_life >= 0 AND tool_life <= 100),
@@ -27,6 +27,92 @@ SELECT add_retention_policy(
        );
 
 
+-- Narrow storage: one row per signal and sample, for fields without a column in cnc_machine
+CREATE TABLE IF NOT EXISTS cnc_signal (
+                                          signal_id SMALLINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+                                          name TEXT NOT NULL UNIQUE
+);
+
+CREATE TABLE IF NOT EXISTS cnc_signal_value (
+                                                time TIMESTAMPTZ NOT NULL,
+                                                machine TEXT NOT NULL,
+                                                signal_id SMALLINT NOT NULL,
+                                                value DOUBLE PRECISION,
+                                                PRIMARY KEY (signal_id, machine, time)
+);
+
+SELECT create_hypertable('cnc_signal_value', 'time', if_not_exists => TRUE);
+
+-- Kafka offsets of the TimescaleAgent, written in the same transaction as the rows
+CREATE TABLE IF NOT EXISTS cnc_consumer_offset (
+                                                   group_id TEXT NOT NULL,
+                                                   topic TEXT NOT NULL,
+                                                   partition INT NOT NULL,
+                                                   next_offset BIGINT NOT NULL,
+                                                   updated_at TIMESTAMPTZ NOT NULL DEFAULT now(),
+                                                   PRIMARY KEY (group_id, topic, partition)
+);
+
+SELECT add_retention_policy(
+               'cnc_signal_value',
+               INTERVAL '30 days',
+               if_not_exists => TRUE
+       );
+
+-- Tumbling-window rollups written by the TimescaleAgent as the samples stream in
+CREATE TABLE IF NOT EXISTS cnc_rollup_1s (
+                                             bucket TIMESTAMPTZ NOT NULL,
+                                             machine TEXT NOT NULL,
+                                             signal_id SMALLINT NOT NULL,
+                                             min_value DOUBLE PRECISION,
+                                             max_value DOUBLE PRECISION,
+                                             avg_value DOUBLE PRECISION,
+                                             last_value DOUBLE PRECISION,
+                                             samples INT NOT NULL,
+                                             -- Kafka partition and newest offset merged into the row, so a part is not added twice
+                                             kafka_partition INT,
+                                             last_offset BIGINT,
+                                             PRIMARY KEY (signal_id, machine, bucket)
+);
+
+ALTER TABLE cnc_rollup_1s ADD COLUMN IF NOT EXISTS kafka_partition INT;
+ALTER TABLE cnc_rollup_1s ADD COLUMN IF NOT EXISTS last_offset BIGINT;
+
+SELECT create_hypertable('cnc_rollup_1s', 'bucket', if_not_exists => TRUE);
+
+SELECT add_retention_policy(
+               'cnc_rollup_1s',
+               INTERVAL '30 days',
+               if_not_exists => TRUE
+       );
+
+CREATE TABLE IF NOT EXISTS cnc_rollup_1m (
+                                             bucket TIMESTAMPTZ NOT NULL,
+                                             machine TEXT NOT NULL,
+                                             signal_id SMALLINT NOT NULL,
+                                             min_value DOUBLE PRECISION,
+                                             max_value DOUBLE PRECISION,
+                                             avg_value DOUBLE PRECISION,
+                                             last_value DOUBLE PRECISION,
+                                             samples INT NOT NULL,
+                                             -- Kafka partition and newest offset merged into the row, so a part is not added twice
+                                             kafka_partition INT,
+                                             last_offset BIGINT,
+                                             PRIMARY KEY (signal_id, machine, bucket)
+);
+
+ALTER TABLE cnc_rollup_1m ADD COLUMN IF NOT EXISTS kafka_partition INT;
+ALTER TABLE cnc_rollup_1m ADD COLUMN IF NOT EXISTS last_offset BIGINT;
+
+SELECT create_hypertable('cnc_rollup_1m', 'bucket', if_not_exists => TRUE);
+
+SELECT add_retention_policy(
+               'cnc_rollup_1m',
+               INTERVAL '365 days',
+               if_not_exists => TRUE
+       );
+
+
 
 
 DROP MATERIALIZED VIEW IF EXISTS public.hourly_cnc_kpis CASCADE;